@@ -0,0 +1,74 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.IdBloomFilter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 启动时从数据库加载店铺、笔记、用户id到布隆过滤器，之后定时重新加载被关闭的过滤器
+ */
+@Slf4j
+@Order(1)
+@Component
+public class BloomFilterLoader implements ApplicationRunner {
+    private static final int BATCH_SIZE = 5000;
+    @Resource
+    private IdBloomFilter idBloomFilter;
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private IBlogService blogService;
+    @Resource
+    private IUserService userService;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        load(CACHE_SHOP_KEY, shopService);
+        load(CACHE_BLOG_KEY, blogService);
+        load(CACHE_USER_KEY, userService);
+    }
+
+    /**
+     * 加入失败的过滤器会被所有节点关闭，这里定时重新加载，恢复拦截
+     */
+    @Scheduled(fixedDelayString = "${hmdp.bloom.reload-interval-ms:60000}", initialDelayString = "${hmdp.bloom.reload-interval-ms:60000}")
+    public void reloadDisabled() {
+        if (idBloomFilter.needsLoad(CACHE_SHOP_KEY)) {
+            load(CACHE_SHOP_KEY, shopService);
+        }
+        if (idBloomFilter.needsLoad(CACHE_BLOG_KEY)) {
+            load(CACHE_BLOG_KEY, blogService);
+        }
+        if (idBloomFilter.needsLoad(CACHE_USER_KEY)) {
+            load(CACHE_USER_KEY, userService);
+        }
+    }
+
+    private <T> void load(String keyPrefix, IService<T> service) {
+        try {
+            idBloomFilter.load(keyPrefix, service.count(), lastId -> nextIds(service, lastId));
+        } catch (Exception e) {
+            //加载失败不影响启动，过滤器不可用时全部放行
+            log.error("加载布隆过滤器{}失败", keyPrefix, e);
+        }
+    }
+
+    private <T> List<Long> nextIds(IService<T> service, Long lastId) {
+        return service.listObjs(new QueryWrapper<T>().select("id").gt("id", lastId).orderByAsc("id")
+                .last("limit " + BATCH_SIZE), o -> Long.valueOf(o.toString()));
+    }
+}
@@ -0,0 +1,118 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
+
+/**
+ * 启动预热：把评论数、评分最高的店铺和全部店铺类型写入redis
+ * ApplicationRunner执行完之后spring才会把就绪状态切换为ACCEPTING_TRAFFIC，
+ * 所以 /actuator/health/readiness 在预热完成之前不会返回UP，负载均衡不会把流量切过来
+ */
+@Slf4j
+@Order(2)
+@Component
+public class CacheWarmUpRunner implements ApplicationRunner {
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private IShopTypeService shopTypeService;
+    @Resource
+    private CacheClient cacheClient;
+
+    @Value("${hmdp.cache.warm-up.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.cache.warm-up.top-shops:1000}")
+    private int topShops;
+
+    @Value("${hmdp.cache.warm-up.batch-size:100}")
+    private int batchSize;
+
+    @Value("${hmdp.cache.warm-up.parallelism:4}")
+    private int parallelism;
+
+    @Value("${hmdp.cache.warm-up.batches-per-second:20}")
+    private int batchesPerSecond;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        try {
+            //1.店铺类型
+            shopTypeService.loadTypeList();
+            //2.热门店铺
+            int shops = warmUpShops();
+            log.info("缓存预热完成，店铺{}个，耗时{}ms", shops, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            //预热失败不影响启动，缓存会在访问时加载
+            log.error("缓存预热失败", e);
+        }
+    }
+
+    private int warmUpShops() {
+        //1.只查询id，按评论数、评分倒序
+        List<Long> ids = shopService.listObjs(new QueryWrapper<Shop>().select("id")
+                .orderByDesc("comments").orderByDesc("score")
+                .last("limit " + topShops), o -> Long.valueOf(o.toString()));
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        //2.分批并行加载，每批一次MGET，未命中的一次IN查询，按每秒批次数限速，避免压垮数据库
+        List<List<Long>> batches = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i += batchSize) {
+            batches.add(ids.subList(i, Math.min(i + batchSize, ids.size())));
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                r -> new Thread(r, "cache-warm-up-" + threadNumber.incrementAndGet()));
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, batchesPerSecond);
+        long start = System.nanoTime();
+        try {
+            List<CompletableFuture<Integer>> futures = new ArrayList<>(batches.size());
+            for (int i = 0; i < batches.size(); i++) {
+                List<Long> batch = batches.get(i);
+                long notBefore = start + i * intervalNanos;
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    //第i批最早在 start + i * interval 执行
+                    long wait = notBefore - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    return cacheClient.queryBatch(CACHE_SHOP_KEY, batch, Shop.class,
+                            missIds -> shopService.listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                            CACHE_SHOP_TTL, TimeUnit.MINUTES).size();
+                }, executor));
+            }
+            return futures.stream().mapToInt(CompletableFuture::join).sum();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -1,19 +1,25 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.Set;
 
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
     //这里可以自动注入，因为这个类被spring容器管理了
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    //管理员的用户id，逗号分隔
+    @Value("${hmdp.admin.user-ids:}")
+    private Set<Long> adminIds;
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new LoginInterceptor()).excludePathPatterns(
@@ -25,6 +31,7 @@ public class MvcConfig implements WebMvcConfigurer {
                 "/user/login",
                 "/blog/hot"
         ).order(1);
+        registry.addInterceptor(new AdminInterceptor(adminIds)).addPathPatterns("/admin/**").order(2);
         //order值越小先执行
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
     }
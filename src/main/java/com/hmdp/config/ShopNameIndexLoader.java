@@ -0,0 +1,52 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.ShopNameIndex;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 启动时从数据库加载店铺名称、商圈到进程内倒排索引，之后定期全量重新加载，补上丢失的变更消息
+ */
+@Slf4j
+@Order(4)
+@Component
+public class ShopNameIndexLoader implements ApplicationRunner {
+    private static final int BATCH_SIZE = 5000;
+    @Resource
+    private ShopNameIndex shopNameIndex;
+    @Resource
+    private IShopService shopService;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        load();
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.search.name-index.resync-interval-ms:600000}", initialDelayString = "${hmdp.search.name-index.resync-interval-ms:600000}")
+    public void resync() {
+        if (shopNameIndex.isEnabled()) {
+            load();
+        }
+    }
+
+    private void load() {
+        try {
+            //只查询索引需要的列，按id分批
+            shopNameIndex.load(lastId -> shopService.list(new QueryWrapper<Shop>()
+                    .select("id", "name", "area", "comments").gt("id", lastId).orderByAsc("id")
+                    .last("limit " + BATCH_SIZE)));
+        } catch (Exception e) {
+            //加载失败不影响启动，按名称查询继续使用数据库；重新加载失败时保留原来的索引
+            log.error("加载店铺名称索引失败", e);
+        }
+    }
+}
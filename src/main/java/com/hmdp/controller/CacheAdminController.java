@@ -0,0 +1,45 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.HotKeyDetector;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 缓存管理
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin/cache")
+public class CacheAdminController {
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    /**
+     * 本节点当前的热点key，按访问次数倒序
+     */
+    @GetMapping("/hot-keys")
+    public Result hotKeys() {
+        return Result.ok(hotKeyDetector.hotKeys());
+    }
+
+    /**
+     * 修改店铺类型后重新加载，所有节点按新版本刷新
+     */
+    @PostMapping("/shop-type/reload")
+    public Result reloadShopTypes() {
+        shopTypeService.loadTypeList();
+        return Result.ok(shopTypeService.queryTypeSnapshot().getVersion());
+    }
+}
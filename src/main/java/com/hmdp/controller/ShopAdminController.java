@@ -0,0 +1,34 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IShopService;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 商铺管理，/admin/** 只有管理员可以访问
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin/shop")
+public class ShopAdminController {
+
+    @Resource
+    private IShopService shopService;
+
+    /**
+     * 删除商铺
+     * @param id 商铺id
+     * @return 无
+     */
+    @DeleteMapping("/{id}")
+    public Result deleteShop(@PathVariable("id") Long id) {
+        return shopService.delete(id);
+    }
+}
@@ -1,12 +1,10 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopSearchDTO;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -44,10 +42,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库，返回店铺id
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -77,6 +73,37 @@ public class ShopController {
         return shopService.queryByType(typeId , current, x,y);
     }
 
+    /**
+     * 根据商铺类型筛选附近商铺
+     * @param query typeId、x、y必传，radius、minPrice、maxPrice、minScore、openNow、sortBy、current可选
+     * @return 商铺列表
+     */
+    @GetMapping("/of/type/search")
+    public Result searchShopByType(ShopSearchDTO query) {
+        if (query.getTypeId() == null || query.getX() == null || query.getY() == null) {
+            return Result.fail("类型和坐标不能为空！");
+        }
+        return shopService.searchByType(query);
+    }
+
+    /**
+     * 根据商铺类型按距离滚动查询附近商铺
+     * @param typeId 商铺类型
+     * @param lastDistance 上一页最后一个商铺的距离，第一页不传
+     * @param lastId 上一页最后一个商铺的id
+     * @return 商铺列表和下一页的游标
+     */
+    @GetMapping("/of/type/scroll")
+    public Result scrollShopByType(
+            @RequestParam("typeId") Integer typeId,
+            @RequestParam("x") Double x,
+            @RequestParam("y") Double y,
+            @RequestParam(value = "lastDistance", required = false) Double lastDistance,
+            @RequestParam(value = "lastId", defaultValue = "0") Long lastId
+    ) {
+        return shopService.scrollByType(typeId, x, y, lastDistance, lastId);
+    }
+
     /**
      * 根据商铺名称关键字分页查询商铺信息
      * @param name 商铺名称关键字
@@ -88,11 +115,6 @@ public class ShopController {
             @RequestParam(value = "name", required = false) String name,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryByName(name, current);
     }
 }
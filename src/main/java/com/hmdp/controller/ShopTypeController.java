@@ -2,14 +2,14 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
-import com.hmdp.entity.ShopType;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.service.IShopTypeService;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
 import javax.annotation.Resource;
-import java.util.List;
 
 /**
  * <p>
@@ -26,9 +26,13 @@ public class ShopTypeController {
     private IShopTypeService typeService;
 
     @GetMapping("list")
-    public Result queryTypeList() {
-        List<ShopType> typeList = typeService
-                .query().orderByAsc("sort").list();
-        return Result.ok(typeList);
+    public Result queryTypeList(WebRequest request) {
+        ShopTypeSnapshot snapshot = typeService.queryTypeSnapshot();
+        //1.客户端缓存的版本没有变化，返回304
+        if (request.checkNotModified(snapshot.getVersion())) {
+            return null;
+        }
+        //2.返回列表，响应头带上ETag
+        return Result.ok(snapshot.getTypes());
     }
 }
@@ -0,0 +1,18 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 附近店铺的滚动分页结果，下一页请求带上lastDistance和lastId
+ */
+@Data
+public class GeoScrollResult {
+    private List<?> list;
+    /*
+    本页最后一个店铺的距离和id，没有下一页时为空
+    * */
+    private Double lastDistance;
+    private Long lastId;
+}
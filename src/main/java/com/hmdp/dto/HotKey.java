@@ -0,0 +1,16 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HotKey {
+    private String key;
+    /**
+     * 最近一个窗口内的访问次数（估计值，只会偏大）
+     */
+    private Long count;
+}
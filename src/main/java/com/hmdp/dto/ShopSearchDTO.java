@@ -0,0 +1,32 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 附近店铺查询条件，除了类型和坐标都是可选的
+ */
+@Data
+public class ShopSearchDTO {
+    private Long typeId;
+    private Double x;
+    private Double y;
+    /*
+    搜索半径，单位米，默认5公里
+    * */
+    private Double radius;
+    private Long minPrice;
+    private Long maxPrice;
+    /*
+    最低评分，1~5分乘10，和Shop.score一致
+    * */
+    private Integer minScore;
+    /*
+    只看现在营业中的店铺
+    * */
+    private Boolean openNow;
+    /*
+    排序方式：distance 距离最近；score 评分最高；blend 评分和距离加权
+    * */
+    private String sortBy = "distance";
+    private Integer current = 1;
+}
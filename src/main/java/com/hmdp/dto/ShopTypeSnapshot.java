@@ -0,0 +1,23 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.ShopType;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * 店铺类型列表的不可变快照
+ */
+@Getter
+public class ShopTypeSnapshot {
+    /*
+    列表内容的摘要，内容不变时各节点的版本一致，作为ETag返回给前端
+    * */
+    private final String version;
+    private final List<ShopType> types;
+
+    public ShopTypeSnapshot(String version, List<ShopType> types) {
+        this.version = version;
+        this.types = types;
+    }
+}
@@ -13,4 +13,8 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    /**
+     * 把秒杀券的库存、时间窗口和已下单用户写入redis，redis中已经有库存时不会覆盖
+     */
+    void preheat(SeckillVoucher voucher);
 }
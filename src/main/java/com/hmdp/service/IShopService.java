@@ -1,6 +1,7 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopSearchDTO;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -16,7 +17,33 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    Result saveShop(Shop shop);
+
     Result update(Shop shop);
 
+    Result delete(Long id);
+
     Result queryByType(Integer typeId, Integer current, Double x, Double y);
+
+    /**
+     * 按名称或商圈关键字分页查询，关键字为空时按数据库分页
+     */
+    Result queryByName(String name, Integer current);
+
+    /**
+     * 按半径、均价、评分、营业时间筛选附近店铺，按距离、评分或者两者加权排序后分页
+     */
+    Result searchByType(ShopSearchDTO query);
+
+    /**
+     * 按距离滚动查询附近店铺，每页只查询游标之后的店铺
+     * @param lastDistance 上一页最后一个店铺的距离，第一页为空
+     * @param lastId 上一页最后一个店铺的id
+     */
+    Result scrollByType(Integer typeId, Double x, Double y, Double lastDistance, Long lastId);
+
+    /**
+     * 对比数据库和redis中的GEO集合，修复写入失败、事务回滚等原因造成的不一致
+     */
+    void reconcileGeo();
 }
@@ -1,8 +1,11 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -13,4 +16,18 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IShopTypeService extends IService<ShopType> {
 
+    /**
+     * 按sort排序的店铺类型列表，优先读取redis缓存
+     */
+    List<ShopType> queryTypeList();
+
+    /**
+     * 内存中的店铺类型快照，第一次访问时从redis加载，之后只在版本变化时刷新，不访问数据库
+     */
+    ShopTypeSnapshot queryTypeSnapshot();
+
+    /**
+     * 从数据库加载店铺类型列表，写入redis并通知所有节点刷新
+     */
+    List<ShopType> loadTypeList();
 }
@@ -2,7 +2,6 @@ package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
@@ -15,6 +14,8 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
@@ -25,11 +26,13 @@ import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
-import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -49,6 +52,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private IFollowService followService;
+    @Resource
+    private IdBloomFilter idBloomFilter;
+    @Resource
+    private CacheClient cacheClient;
 
     @Override
     public Result queryHotBlog(Integer current) {
@@ -58,11 +65,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        // 批量查询用户
+        this.queryBlogUsers(records);
+        records.forEach(this::isBlogLiked);
         return Result.ok(records);
     }
 
@@ -73,9 +78,37 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         blog.setIcon(user.getIcon());
     }
 
+    /**
+     * 一次批量查询一组笔记的作者
+     */
+    private void queryBlogUsers(List<Blog> blogs) {
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).distinct().collect(Collectors.toList());
+        Map<Long, UserDTO> users = queryUsers(userIds).stream().collect(Collectors.toMap(UserDTO::getId, Function.identity()));
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if(user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+    }
+
+    /**
+     * 按ids的顺序批量查询用户，走缓存
+     */
+    private List<UserDTO> queryUsers(List<Long> ids) {
+        return cacheClient.queryBatch(CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> userService.listByIds(missIds).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
     @Override
     public Result queryBlogById(Long id) {
-        //1.查询blog
+        //1.查询blog，布隆过滤器判断一定不存在的直接返回
+        if(!idBloomFilter.mightContain(CACHE_BLOG_KEY, id)) {
+            return Result.fail("笔记不存在");
+        }
         Blog blog = getById(id);
         if(blog == null) {
             return Result.fail("笔记不存在");
@@ -112,9 +145,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //3.如果未点赞 可以点赞
             //3.1数据库点赞数+1
             boolean isSuccess = update().setSql("liked = liked + 1").eq("id", id).update();
-            //3.2保存用户到redis的set集合
+            //3.2保存用户到redis的set集合，点赞数变了，删除笔记缓存
             if(isSuccess) {
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(),System.currentTimeMillis());
+                cacheClient.delete(CACHE_BLOG_KEY + id);
             }
         }else{
             //4.如果已点赞 取消点赞
@@ -123,6 +157,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //4.2 把用户从Redis的set集合移除
             if(isSuccess) {
                 stringRedisTemplate.opsForZSet().remove(key,userId.toString());
+                cacheClient.delete(CACHE_BLOG_KEY + id);
             }
 
         }
@@ -139,9 +174,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         //2.解析出其中的用户id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idStr = StrUtil.join(",",ids);
-        //3.根据用户id查询用户 where id in (5,1) order by field(id , 5 ,1) 根据in(5,1)的顺序查询出来必须要加field,且二者顺序一致
-        List<UserDTO> UserDTOS = userService.query().in("id",ids).last("ORDER BY FIELD (id,"+idStr+")").list().stream().map(user -> BeanUtil.copyProperties(user,UserDTO.class)).collect(Collectors.toList());
+        //3.根据用户id批量查询用户缓存，结果和ids的顺序一致
+        List<UserDTO> UserDTOS = queryUsers(ids);
         //4.返回
         return Result.ok(UserDTOS);
     }
@@ -156,6 +190,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if(!isSuccess) {
             return Result.fail("新增笔记失败！");
         }
+        idBloomFilter.add(CACHE_BLOG_KEY, blog.getId());
         //查询笔记的所有粉丝
         List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
 
@@ -199,12 +234,13 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         //4.根据id查询blog
 //        List<Blog> blogs = listByIds(ids);//基于mysql的in实现的，in不能保证返回前端的list是有序的
-        String idStr = StrUtil.join(",", ids);
-        List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for(Blog blog : blogs) {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        }
+        //批量查询笔记缓存，结果和ids的顺序一致；缓存中的对象是共享的，复制之后再填充作者和点赞信息
+        List<Blog> blogs = cacheClient.queryBatch(CACHE_BLOG_KEY, ids, Blog.class,
+                        missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Blog::getId, Function.identity())),
+                        CACHE_BLOG_TTL, TimeUnit.MINUTES)
+                .stream().map(blog -> BeanUtil.copyProperties(blog, Blog.class)).collect(Collectors.toList());
+        this.queryBlogUsers(blogs);
+        blogs.forEach(this::isBlogLiked);
 
 
         //5.封装并返回
@@ -1,11 +1,36 @@
 package com.hmdp.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.SeckillStockGate;
+import com.hmdp.utils.SeckillStockSharding;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SECKILL_PREHEAT_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -14,7 +39,111 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private SeckillStockSharding seckillStockSharding;
+
+    @Resource
+    private SeckillStockGate seckillStockGate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Value("${hmdp.seckill.preheat.lead-minutes:10}")
+    private long leadMinutes;
+
+    @Value("${hmdp.seckill.preheat.cleanup-lookback-hours:24}")
+    private long cleanupLookbackHours;
+
+    /**
+     * 定时预热即将开始的秒杀券，清理已经结束的秒杀券，多个节点通过互斥锁保证同一时间只有一个节点执行
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preheat.interval-ms:60000}")
+    public void preheatAndCleanup() {
+        //redisson的锁不指定过期时间时由看门狗续期，执行时间再长也不会被别的节点拿走，解锁时校验持有者
+        RLock lock = redissonClient.getLock(LOCK_SECKILL_PREHEAT_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            //1.预热 begin_time 在提前量之内、还没有结束的券
+            List<SeckillVoucher> upcoming = query()
+                    .le("begin_time", now.plusMinutes(leadMinutes))
+                    .gt("end_time", now)
+                    .list();
+            for (SeckillVoucher voucher : upcoming) {
+                if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_WINDOW_KEY + voucher.getVoucherId()))) {
+                    //已经预热过，每次都用数据库里的时间覆盖时间窗口，后台修改了开始、结束时间也能同步
+                    if (writeWindow(voucher)) {
+                        seckillStockGate.publishReplenished(voucher.getVoucherId());
+                    }
+                    continue;
+                }
+                preheat(voucher);
+            }
+            //2.清理最近结束的券
+            List<SeckillVoucher> ended = query()
+                    .le("end_time", now)
+                    .gt("end_time", now.minusHours(cleanupLookbackHours))
+                    .list();
+            for (SeckillVoucher voucher : ended) {
+                seckillStockSharding.clear(voucher.getVoucherId());
+                stringRedisTemplate.delete(SECKILL_WINDOW_KEY + voucher.getVoucherId());
+            }
+        } catch (Exception e) {
+            log.error("秒杀券预热异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void preheat(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        //1.redis中还没有库存才写入，已经开始的秒杀redis里的库存比数据库新（订单还在消息队列里），不能覆盖
+        if (!seckillStockSharding.hasStock(voucherId)) {
+            seckillStockSharding.initStock(voucherId, voucher.getStock());
+            //2.订单集合只保留已经下过单的用户，新券就是空集合
+            List<Long> userIds = voucherOrderMapper.selectObjs(new QueryWrapper<VoucherOrder>()
+                            .select("user_id").eq("voucher_id", voucherId))
+                    .stream().map(o -> Long.valueOf(o.toString())).collect(Collectors.toList());
+            seckillStockSharding.resetBuyers(voucherId, userIds);
+        }
+        //3.写入时间窗口
+        writeWindow(voucher);
+        //4.通知所有节点清除本地的售罄标记和时间窗口
+        seckillStockGate.publishReplenished(voucherId);
+        log.info("预热秒杀券：{}", voucherId);
+    }
+
+    /**
+     * 写入时间窗口，结束一天后自动过期
+     * @return 时间窗口是否和redis中原来的不同
+     */
+    private boolean writeWindow(SeckillVoucher voucher) {
+        String key = SECKILL_WINDOW_KEY + voucher.getVoucherId();
+        String begin = String.valueOf(toEpochMilli(voucher.getBeginTime()));
+        String end = String.valueOf(toEpochMilli(voucher.getEndTime()));
+        List<Object> old = stringRedisTemplate.opsForHash().multiGet(key, Arrays.asList("begin", "end"));
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", begin);
+        window.put("end", end);
+        stringRedisTemplate.opsForHash().putAll(key, window);
+        stringRedisTemplate.expireAt(key, new Date(toEpochMilli(voucher.getEndTime()) + Duration.ofDays(1).toMillis()));
+        return !begin.equals(old.get(0)) || !end.equals(old.get(1));
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 }
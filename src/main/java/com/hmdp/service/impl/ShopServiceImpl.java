@@ -1,33 +1,53 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.dto.GeoScrollResult;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopSearchDTO;
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.RedisScriptRegistry;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopNameIndex;
 import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.geo.Distance;
-import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.data.redis.domain.geo.GeoReference;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
-import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -39,18 +59,50 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+    @Resource
+    private ShopNameIndex shopNameIndex;
+    @Resource
+    private IdBloomFilter idBloomFilter;
+    @Resource
+    private IShopTypeService shopTypeService;
+    @Resource
+    private RedissonClient redissonClient;
+    @Value("${hmdp.cdc.enabled:false}")
+    private boolean cdcEnabled;
+    @Value("${hmdp.geo.scroll.session-ttl-seconds:60}")
+    private long scrollSessionTtl;
+    @Value("${hmdp.geo.search.score-weight:0.5}")
+    private double scoreWeight;
+    @Value("${hmdp.geo.search.fallback-limit:500}")
+    private int fallbackLimit;
+    @Value("${hmdp.geo.reconcile.batch-size:1000}")
+    private int reconcileBatchSize;
+    private RedisScript<List> geoScrollScript;
+
+    @PostConstruct
+    private void init() {
+        geoScrollScript = redisScriptRegistry.register("geo_scroll", List.class);
+    }
+
     @Override
     public Result queryById(Long id) {
         //缓存穿透
         //Shop shop = queryWithPassThrough(id);
         //互斥锁解决缓存击穿
 //        Shop shop = queryWithMutex(id);
-        //逻辑过期时间解决缓存击穿
+        //逻辑过期时间解决缓存击穿，热点店铺命中本地一级缓存
         Shop shop = queryWithLogicalExpire(id);
         if(shop == null) {
             return Result.fail("店铺不存在！");
@@ -59,6 +111,23 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    @Override
+    @Transactional
+    public Result saveShop(Shop shop) {
+        //1.写入数据库
+        save(shop);
+        //2.加入布隆过滤器
+        idBloomFilter.add(CACHE_SHOP_KEY, shop.getId());
+        //3.写入GEO集合、坐标索引和名称索引；开启binlog订阅时由订阅方处理
+        if(!cdcEnabled) {
+            afterCommit(() -> {
+                syncGeo(null, shop);
+                shopNameIndex.update(shop);
+            });
+        }
+        return Result.ok(shop.getId());
+    }
+
     @Override
     @Transactional//下面的更新和删除动作目前是单机执行的，所以可以通过transactional控制。分布式则不行
     public Result update(Shop shop) {
@@ -66,15 +135,195 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if(id == null) {
             return Result.fail("店铺id不能为空");
         }
+        Shop old = getById(id);
+        if(old == null) {
+            return Result.fail("店铺不存在！");
+        }
         //1.更新数据库
         updateById(shop);
-        //2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY+shop.getId());
+        //2.删除缓存，同时通知所有节点清除本地缓存，更新GEO集合、坐标索引和名称索引；开启binlog订阅时由订阅方在事务提交后处理
+        if(!cdcEnabled) {
+            cacheClient.delete(CACHE_SHOP_KEY+shop.getId());
+            Shop now = getById(id);
+            afterCommit(() -> {
+                syncGeo(old, now);
+                shopNameIndex.update(now);
+            });
+        }
         return Result.ok();
     }
 
+    @Override
+    @Transactional
+    public Result delete(Long id) {
+        Shop old = getById(id);
+        if(old == null) {
+            return Result.fail("店铺不存在！");
+        }
+        //1.删除数据库
+        removeById(id);
+        //2.删除缓存、GEO集合中的店铺、坐标索引和名称索引；开启binlog订阅时由订阅方在事务提交后处理
+        if(!cdcEnabled) {
+            cacheClient.delete(CACHE_SHOP_KEY + id);
+            afterCommit(() -> {
+                syncGeo(old, null);
+                shopNameIndex.remove(id);
+            });
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 把店铺的变更写入GEO集合和所有节点的坐标索引，类型变化时从旧类型的集合中移除
+     * 在事务提交之后调用，回滚的变更不会写入；提交后写入失败留下的不一致由 {@link #reconcileGeo()} 修复
+     * @param old 变更前的店铺，新增时为null
+     * @param now 变更后的店铺，删除时为null
+     */
+    private void syncGeo(Shop old, Shop now) {
+        Long id = now != null ? now.getId() : old.getId();
+        boolean located = isLocated(now);
+        if(old != null && old.getTypeId() != null && (!located || !old.getTypeId().equals(now.getTypeId()))) {
+            stringRedisTemplate.opsForGeo().remove(SHOP_GEO_KEY + old.getTypeId(), id.toString());
+        }
+        if(located) {
+            stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + now.getTypeId(), new Point(now.getX(), now.getY()), id.toString());
+            shopGeoIndex.update(now);
+        } else {
+            shopGeoIndex.remove(id);
+        }
+    }
+
+    /**
+     * 有事务时在事务提交之后执行，没有事务时立即执行
+     */
+    private static void afterCommit(Runnable action) {
+        if(!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    private static boolean isLocated(Shop shop) {
+        return shop != null && shop.getTypeId() != null && shop.getX() != null && shop.getY() != null;
+    }
+
+    @Override
+    @Scheduled(initialDelayString = "${hmdp.geo.reconcile.initial-delay-ms:60000}", fixedDelayString = "${hmdp.geo.reconcile.interval-ms:3600000}")
+    public void reconcileGeo() {
+        //redisson的锁由看门狗续期，校对时间再长也不会被别的节点拿走，解锁时校验持有者
+        RLock lock = redissonClient.getLock(LOCK_SHOP_GEO_RECONCILE_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        try {
+            //1.逐个类型扫描GEO集合，删除数据库中已经不存在或者类型已经改变的成员
+            int removed = 0;
+            for (ShopType type : shopTypeService.queryTypeList()) {
+                removed += removeStaleMembers(type.getId());
+            }
+            //2.按id分批读取数据库，补齐缺失或者坐标不一致的成员
+            int added = 0;
+            Long lastId = 0L;
+            List<Shop> shops;
+            //同时查询坐标索引需要的字段，修复时一起更新索引
+            while (!(shops = query().select("id", "type_id", "x", "y", "avg_price", "score", "open_hours")
+                    .gt("id", lastId).orderByAsc("id").last("limit " + reconcileBatchSize).list()).isEmpty()) {
+                lastId = shops.get(shops.size() - 1).getId();
+                Map<Long, List<Shop>> byType = shops.stream().filter(ShopServiceImpl::isLocated)
+                        .collect(Collectors.groupingBy(Shop::getTypeId));
+                for (Map.Entry<Long, List<Shop>> entry : byType.entrySet()) {
+                    added += addMissingMembers(entry.getKey(), entry.getValue());
+                }
+            }
+            log.info("店铺GEO集合校对完成，补齐{}个，删除{}个，耗时{}ms", added, removed, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("店铺GEO集合校对异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int addMissingMembers(Long typeId, List<Shop> shops) {
+        String key = SHOP_GEO_KEY + typeId;
+        //1.一次GEOPOS查询这一批店铺在redis中的坐标
+        List<Point> points = stringRedisTemplate.opsForGeo().position(key,
+                shops.stream().map(shop -> shop.getId().toString()).toArray(String[]::new));
+        //2.不存在或者坐标偏差超过geohash精度的重新写入
+        List<RedisGeoCommands.GeoLocation<String>> missing = new ArrayList<>();
+        for (int i = 0; i < shops.size(); i++) {
+            Shop shop = shops.get(i);
+            Point point = points == null ? null : points.get(i);
+            if(point == null || Math.abs(point.getX() - shop.getX()) > 1e-5 || Math.abs(point.getY() - shop.getY()) > 1e-5) {
+                missing.add(new RedisGeoCommands.GeoLocation<>(shop.getId().toString(), new Point(shop.getX(), shop.getY())));
+                shopGeoIndex.update(shop);
+            }
+        }
+        if(!missing.isEmpty()) {
+            stringRedisTemplate.opsForGeo().add(key, missing);
+        }
+        return missing.size();
+    }
+
+    private int removeStaleMembers(Long typeId) {
+        String key = SHOP_GEO_KEY + typeId;
+        int removed = 0;
+        List<String> members = new ArrayList<>(reconcileBatchSize);
+        //ZSCAN分批读取成员，不阻塞redis
+        try (Cursor<ZSetOperations.TypedTuple<String>> cursor = stringRedisTemplate.opsForZSet()
+                .scan(key, ScanOptions.scanOptions().count(reconcileBatchSize).build())) {
+            while (cursor.hasNext()) {
+                members.add(cursor.next().getValue());
+                if (members.size() >= reconcileBatchSize) {
+                    removed += removeStale(key, typeId, members);
+                    members.clear();
+                }
+            }
+        }
+        if (!members.isEmpty()) {
+            removed += removeStale(key, typeId, members);
+        }
+        return removed;
+    }
+
+    private int removeStale(String key, Long typeId, List<String> members) {
+        //1.一次IN查询这一批成员在数据库中的类型
+        List<Long> ids = members.stream().filter(StrUtil::isNumeric).map(Long::valueOf).collect(Collectors.toList());
+        Map<Long, Long> typeOfShop = ids.isEmpty() ? Collections.emptyMap() : query().select("id", "type_id").in("id", ids).list()
+                .stream().filter(shop -> shop.getTypeId() != null)
+                .collect(Collectors.toMap(Shop::getId, Shop::getTypeId));
+        //2.店铺不存在或者已经换了类型的成员从集合中删除
+        List<String> stale = new ArrayList<>();
+        for (String member : members) {
+            Long shopId = StrUtil.isNumeric(member) ? Long.valueOf(member) : null;
+            Long actualType = shopId == null ? null : typeOfShop.get(shopId);
+            if (typeId.equals(actualType)) {
+                continue;
+            }
+            stale.add(member);
+            if (shopId != null && actualType == null) {
+                shopGeoIndex.remove(shopId);
+            }
+        }
+        if (!stale.isEmpty()) {
+            stringRedisTemplate.opsForZSet().remove(key, stale.toArray());
+        }
+        return stale.size();
+    }
+
     @Override
     public Result queryByType(Integer typeId, Integer current, Double x, Double y) {
+        //页码从1开始，最多翻到MAX_PAGE页，避免一次在内存里排序过多的店铺
+        current = current == null || current < 1 ? 1 : current;
+        if(current > SystemConstants.MAX_PAGE) {
+            return Result.ok(Collections.emptyList());
+        }
         //判断是否需要根据坐标查询
         if(x == null || y == null) {
             //不需要坐标查询 按照数据库查询
@@ -88,44 +337,214 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //计算分页参数
         int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
         int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
-        //查询redis 按照距离排序，分页。结果：shopId distance
-        String key = SHOP_GEO_KEY + typeId;
-        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(key, GeoReference.fromCoordinate(x, y), new Distance(5000), RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().limit(end));
+        List<Long> ids = new ArrayList<>(SystemConstants.DEFAULT_PAGE_SIZE);
+        Map<Long,Double> distanceMap = new HashMap<>(SystemConstants.DEFAULT_PAGE_SIZE);
+        if(shopGeoIndex.isReady()) {
+            //本地坐标索引 按照距离排序，在内存中截取from - end的部分
+            shopGeoIndex.nearby(typeId.longValue(), x, y, SystemConstants.DEFAULT_SEARCH_RADIUS, end).stream().skip(from).forEach(hit -> {
+                ids.add(hit.getShopId());
+                distanceMap.put(hit.getShopId(), hit.getDistance());
+            });
+        } else {
+            //查询redis 按照距离排序，分页。结果：shopId distance
+            String key = SHOP_GEO_KEY + typeId;
+            GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(key, GeoReference.fromCoordinate(x, y), new Distance(SystemConstants.DEFAULT_SEARCH_RADIUS), RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().limit(end));
 
-        //解析出id
-        if(results == null) {
-            return Result.ok(Collections.emptyList());
+            //解析出id
+            if(results == null) {
+                return Result.ok(Collections.emptyList());
+            }
+            //4.1截取from - end的部分
+            results.getContent().stream().skip(from).forEach(result -> {
+                Long shopId = Long.valueOf(result.getContent().getName());
+                ids.add(shopId);
+                distanceMap.put(shopId, result.getDistance().getValue());
+            });
         }
-        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> list = results.getContent();
         //个数不满足
-        if(list.size() <= from) {
+        if(ids.isEmpty()) {
             return Result.ok(Collections.emptyList());
         }
-        //4.1截取from - end的部分
-        List<Long> ids = new ArrayList<>(list.size());
-        Map<String,Distance> distanceMap = new HashMap<>(list.size());
-        list.stream().skip(from).forEach(result -> {
-            String shopIdStr = result.getContent().getName();
-            ids.add(Long.valueOf(shopIdStr));
-            Distance distance = result.getDistance();
-            distanceMap.put(shopIdStr,distance);
-        });
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for (Shop shop : shops){
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+        //4.2批量查询店铺缓存，保持距离顺序
+        return Result.ok(queryShopsWithDistance(ids, distanceMap));
+    }
+
+    @Override
+    public Result queryByName(String name, Integer current) {
+        int pageSize = SystemConstants.MAX_PAGE_SIZE;
+        //页码从1开始，最多翻到MAX_PAGE页，避免一次在内存里排序过多的店铺
+        current = current == null || current < 1 ? 1 : current;
+        if(current > SystemConstants.MAX_PAGE) {
+            return Result.ok(Collections.emptyList());
         }
-        return Result.ok(shops);
+        //1.没有关键字或者名称索引还没有加载完成，按数据库分页查询，不需要总数，不执行COUNT
+        if(StrUtil.isBlank(name) || !shopNameIndex.isReady()) {
+            Page<Shop> page = query()
+                    .like(StrUtil.isNotBlank(name), "name", name)
+                    .page(new Page<>(current, pageSize, false));
+            return Result.ok(page.getRecords());
+        }
+        //2.在名称索引中查询这一页的店铺id，再批量查询店铺缓存
+        List<Long> ids = shopNameIndex.search(name, (current - 1) * pageSize, pageSize);
+        if(ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        return Result.ok(queryShops(ids));
+    }
+
+    @Override
+    public Result searchByType(ShopSearchDTO query) {
+        //1.校验参数
+        double radius = query.getRadius() == null ? SystemConstants.DEFAULT_SEARCH_RADIUS
+                : Math.min(Math.max(query.getRadius(), 0), SystemConstants.MAX_SEARCH_RADIUS);
+        String sortBy = StrUtil.blankToDefault(query.getSortBy(), "distance");
+        Comparator<ShopGeoIndex.Hit> order = searchOrder(sortBy, radius);
+        if(order == null) {
+            return Result.fail("不支持的排序方式！");
+        }
+        int current = query.getCurrent() == null || query.getCurrent() < 1 ? 1 : query.getCurrent();
+        if(current > SystemConstants.MAX_PAGE) {
+            return Result.ok(Collections.emptyList());
+        }
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
+        Predicate<ShopGeoIndex.ShopPoint> filter = searchFilter(query);
+        double x = query.getX();
+        double y = query.getY();
+        //2.在本地索引中筛选，按距离排序时只需要取最近的end个，其他排序需要半径内的全部店铺
+        List<ShopGeoIndex.Hit> hits;
+        if(shopGeoIndex.isReady()) {
+            hits = "distance".equals(sortBy)
+                    ? shopGeoIndex.nearby(query.getTypeId(), x, y, radius, -1, 0, end, filter)
+                    : shopGeoIndex.within(query.getTypeId(), x, y, radius, filter);
+        } else {
+            hits = searchInRedis(query.getTypeId(), x, y, radius, filter);
+        }
+        //3.排序后截取from - end的部分
+        hits.sort(order);
+        if(hits.size() <= from) {
+            return Result.ok(Collections.emptyList());
+        }
+        List<Long> ids = new ArrayList<>(SystemConstants.DEFAULT_PAGE_SIZE);
+        Map<Long,Double> distanceMap = new HashMap<>(SystemConstants.DEFAULT_PAGE_SIZE);
+        for (ShopGeoIndex.Hit hit : hits.subList(from, Math.min(end, hits.size()))) {
+            ids.add(hit.getShopId());
+            distanceMap.put(hit.getShopId(), hit.getDistance());
+        }
+        //4.批量查询店铺缓存，保持排序
+        return Result.ok(queryShopsWithDistance(ids, distanceMap));
     }
 
-    private boolean tryLock(String key) {
-        //这里设置10秒有效期，是怕万一程序执行一半出现异常，没有释放锁
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+    /**
+     * 本地索引不可用时，从redis GEO取半径内最近的fallbackLimit个店铺，查询店铺缓存后筛选
+     */
+    private List<ShopGeoIndex.Hit> searchInRedis(Long typeId, double x, double y, double radius, Predicate<ShopGeoIndex.ShopPoint> filter) {
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(SHOP_GEO_KEY + typeId,
+                GeoReference.fromCoordinate(x, y), new Distance(radius),
+                RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().sortAscending().limit(fallbackLimit));
+        List<ShopGeoIndex.Hit> hits = new ArrayList<>();
+        if(results == null || results.getContent().isEmpty()) {
+            return hits;
+        }
+        Map<Long,Double> distanceMap = new LinkedHashMap<>(results.getContent().size());
+        results.getContent().forEach(result ->
+                distanceMap.put(Long.valueOf(result.getContent().getName()), result.getDistance().getValue()));
+        for (Shop shop : queryShops(new ArrayList<>(distanceMap.keySet()))) {
+            if(!isLocated(shop)) {
+                continue;
+            }
+            ShopGeoIndex.ShopPoint point = ShopGeoIndex.ShopPoint.of(shop, 0);
+            if(filter.test(point)) {
+                hits.add(new ShopGeoIndex.Hit(shop.getId(), distanceMap.get(shop.getId()), point.getScore()));
+            }
+        }
+        return hits;
     }
 
-    private void unlock(String key){
-        stringRedisTemplate.delete(key);
+    private static Predicate<ShopGeoIndex.ShopPoint> searchFilter(ShopSearchDTO query) {
+        int now = LocalTime.now().toSecondOfDay() / 60;
+        boolean openNow = Boolean.TRUE.equals(query.getOpenNow());
+        return point -> (query.getMinPrice() == null || (point.getAvgPrice() >= 0 && point.getAvgPrice() >= query.getMinPrice()))
+                && (query.getMaxPrice() == null || (point.getAvgPrice() >= 0 && point.getAvgPrice() <= query.getMaxPrice()))
+                && (query.getMinScore() == null || point.getScore() >= query.getMinScore())
+                && (!openNow || point.isOpenAt(now));
+    }
+
+    /**
+     * @return 排序方式不支持时返回null
+     */
+    private Comparator<ShopGeoIndex.Hit> searchOrder(String sortBy, double radius) {
+        Comparator<ShopGeoIndex.Hit> byDistance = Comparator.comparingDouble(ShopGeoIndex.Hit::getDistance)
+                .thenComparingLong(ShopGeoIndex.Hit::getShopId);
+        if("distance".equals(sortBy)) {
+            return byDistance;
+        }
+        if("score".equals(sortBy)) {
+            return Comparator.comparingInt(ShopGeoIndex.Hit::getScore).reversed().thenComparing(byDistance);
+        }
+        if("blend".equals(sortBy)) {
+            //评分满分50，距离按半径归一化，越近越高
+            return Comparator.comparingDouble((ShopGeoIndex.Hit hit) -> scoreWeight * hit.getScore() / 50
+                            + (1 - scoreWeight) * (radius <= 0 ? 1 : 1 - hit.getDistance() / radius))
+                    .reversed().thenComparing(byDistance);
+        }
+        return null;
+    }
+
+    @Override
+    public Result scrollByType(Integer typeId, Double x, Double y, Double lastDistance, Long lastId) {
+        int pageSize = SystemConstants.DEFAULT_PAGE_SIZE;
+        double afterDistance = lastDistance == null ? -1 : lastDistance;
+        List<Long> ids = new ArrayList<>(pageSize);
+        Map<Long,Double> distanceMap = new HashMap<>(pageSize);
+        if(shopGeoIndex.isReady()) {
+            //1.本地坐标索引，直接从游标位置继续
+            shopGeoIndex.nearby(typeId.longValue(), x, y, SystemConstants.DEFAULT_SEARCH_RADIUS, afterDistance, lastId, pageSize).forEach(hit -> {
+                ids.add(hit.getShopId());
+                distanceMap.put(hit.getShopId(), hit.getDistance());
+            });
+        } else {
+            //2.redis中执行lua脚本，第一页把半径内的店铺按距离存入本次滚动的有序集合，之后只返回游标之后的一页
+            //结果：shopId distance shopId distance ...
+            String sessionKey = "{" + SHOP_GEO_KEY + typeId + "}" + SHOP_GEO_SCROLL_KEY + x + ":" + y;
+            List<?> page = redisScriptRegistry.execute(geoScrollScript, Arrays.asList(SHOP_GEO_KEY + typeId, sessionKey),
+                    x, y, SystemConstants.DEFAULT_SEARCH_RADIUS, afterDistance, lastId, pageSize, scrollSessionTtl);
+            for (int i = 0; page != null && i + 1 < page.size(); i += 2) {
+                Long shopId = Long.valueOf(page.get(i).toString());
+                ids.add(shopId);
+                distanceMap.put(shopId, Double.valueOf(page.get(i + 1).toString()));
+            }
+        }
+        //3.查询店铺，不足一页说明没有下一页了
+        GeoScrollResult r = new GeoScrollResult();
+        r.setList(ids.isEmpty() ? Collections.emptyList() : queryShopsWithDistance(ids, distanceMap));
+        if(ids.size() == pageSize) {
+            Long last = ids.get(ids.size() - 1);
+            r.setLastDistance(distanceMap.get(last));
+            r.setLastId(last);
+        }
+        return Result.ok(r);
+    }
+
+    /**
+     * 批量查询店铺缓存，保持ids的顺序，未命中的一次IN查询
+     */
+    private List<Shop> queryShops(List<Long> ids) {
+        return cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 批量查询店铺缓存并设置距离，缓存中的对象是共享的，复制之后再设置
+     */
+    private List<Shop> queryShopsWithDistance(List<Long> ids, Map<Long,Double> distanceMap) {
+        List<Shop> shops = queryShops(ids).stream()
+                .map(shop -> BeanUtil.copyProperties(shop, Shop.class)).collect(Collectors.toList());
+        for (Shop shop : shops){
+            shop.setDistance(distanceMap.get(shop.getId()));
+        }
+        return shops;
     }
 
     public Shop queryWithPassThrough(Long id){
@@ -156,114 +575,22 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return shop;
     }
     public Shop queryWithMutex(Long id){
-        String key = CACHE_SHOP_KEY+ id;
-        //1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if(StrUtil.isNotBlank(shopJson)) {
-            //3.存在 直接返回
-            Shop shop = JSONUtil.toBean(shopJson,Shop.class);
-            return shop;
-        }
-        //判断命中的是否是空值
-        if(shopJson != null) {
-            //返回一个错误信息
-            return null;
-        }
-
-
-        //4.实现缓存重建
-        //4.1获取互斥锁
-        String lockKey = "lock:shop:" + id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            //4.2判断是否获取成功
-            if(!isLock) {
-                //4.3失败 休眠重试
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-
-            //4.4成功 根据id查询数据库
-            shop = getById(id);
-            //模拟重建的延时
-            Thread.sleep(200);
-            //5.不存在，返回错误
-            if(shop == null) {
-                stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
-                return null;
-            }
-            //6.存在 写入redis
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop),CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            //7 释放互斥锁
-            unlock(lockKey);
-        }
-
-        //8 返回
-        return shop;
+        //并发未命中在本节点合并为一次加载，节点之间通过互斥锁只重建一次
+        return cacheClient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     public void saveShop2Redis(Long id,Long expireSeconds) throws InterruptedException {
         //1.查询店铺数据
         Shop shop = getById(id);
         Thread.sleep(200);
-        //2.封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        //3.写入Redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY+id,JSONUtil.toJsonStr(redisData));
+        //2.封装逻辑过期时间，按配置的编码写入Redis
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY+id, shop, expireSeconds, TimeUnit.SECONDS);
 
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTION = Executors.newFixedThreadPool(10);
     public Shop queryWithLogicalExpire(Long id){
-        String key = CACHE_SHOP_KEY+ id;
-        //1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if(StrUtil.isBlank(shopJson)) {
-            //3.不存在 直接返回
-            return null;
-        }
-        //4.命中，需要把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        Shop shop = JSONUtil.toBean(data, Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //5.判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())) {
-            //5.1未过期 直接返回店铺信息
-            return shop;
-        }
-
-        //5.2已过期，重建缓存
-        //6.缓存重建
-        //6.1获取互斥锁
-        String lockKey = LOCK_SHOP_KEY+id;
-        boolean isLock = tryLock(lockKey);
-        //6.2判断是否获取互斥锁成功
-        if(isLock) {
-            //6.3成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTION.submit(() -> {
-               try {
-                   this.saveShop2Redis(id,20L);
-               } catch (Exception e) {
-                   throw new RuntimeException(e);
-               } finally {
-                   //释放锁
-                   unlock(lockKey);
-               }
-            });
-        }
-
-        //6.4返回过期的商铺信息
-
-        //7 返回
-        return shop;
+        //未命中时加载，过期后在CacheClient的重建线程池中异步刷新
+        //逻辑过期时间和列表批量查询、启动预热写入的一致，同一个key不会因为写入方不同而过期时间相差几十倍
+        return cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 }
@@ -1,11 +1,28 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.crypto.SecureUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.*;
+
 /**
  * <p>
  *  服务实现类
@@ -14,7 +31,98 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer container;
+
+    /*
+    内存中的快照，只在版本变化时整体替换
+    * */
+    private volatile ShopTypeSnapshot snapshot;
+
+    @PostConstruct
+    private void init() {
+        //其他节点重新加载了店铺类型，按通知中的版本从redis刷新
+        container.addMessageListener((message, pattern) ->
+                refresh(new String(message.getBody(), StandardCharsets.UTF_8)), new ChannelTopic(SHOP_TYPE_CHANGED_CHANNEL));
+    }
+
+    @Override
+    public List<ShopType> queryTypeList() {
+        return queryTypeSnapshot().getTypes();
+    }
+
+    @Override
+    public ShopTypeSnapshot queryTypeSnapshot() {
+        ShopTypeSnapshot current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (snapshot == null) {
+                //1.查询redis
+                String json = stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_KEY);
+                if (StrUtil.isNotBlank(json)) {
+                    snapshot = toSnapshot(json);
+                } else {
+                    //2.未命中，查询数据库并写入redis
+                    loadTypeList();
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    @Override
+    public List<ShopType> loadTypeList() {
+        List<ShopType> typeList = query().orderByAsc("sort").list();
+        String json = JSONUtil.toJsonStr(typeList);
+        ShopTypeSnapshot loaded = toSnapshot(json);
+        //1.先写内容再写版本，其他节点看到新版本时一定能读到新的内容
+        stringRedisTemplate.opsForValue().set(CACHE_SHOP_TYPE_KEY, json);
+        stringRedisTemplate.opsForValue().set(CACHE_SHOP_TYPE_VERSION_KEY, loaded.getVersion());
+        snapshot = loaded;
+        //2.通知其他节点
+        stringRedisTemplate.convertAndSend(SHOP_TYPE_CHANGED_CHANNEL, loaded.getVersion());
+        return loaded.getTypes();
+    }
+
+    /**
+     * 定时比较redis中的版本，兜底断线期间丢失的通知
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.shop-type.poll-ms:30000}")
+    public void pollVersion() {
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            refresh(stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_VERSION_KEY));
+        } catch (Exception e) {
+            log.warn("检查店铺类型版本失败", e);
+        }
+    }
+
+    private void refresh(String version) {
+        ShopTypeSnapshot current = snapshot;
+        if (version == null || current == null || version.equals(current.getVersion())) {
+            return;
+        }
+        String json = stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_KEY);
+        if (StrUtil.isNotBlank(json)) {
+            snapshot = toSnapshot(json);
+        }
+    }
+
+    /**
+     * 版本取内容的摘要，同样的内容在所有节点上版本相同
+     */
+    private static ShopTypeSnapshot toSnapshot(String json) {
+        return new ShopTypeSnapshot(SecureUtil.md5(json), Collections.unmodifiableList(JSONUtil.toList(json, ShopType.class)));
+    }
 }
@@ -1,6 +1,9 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
@@ -8,26 +11,36 @@ import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisScriptRegistry;
+import com.hmdp.utils.SeckillStockGate;
+import com.hmdp.utils.SeckillStockSharding;
+import com.hmdp.utils.StreamOrderMonitor;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-
-import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_DLQ_KEY;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_GROUP;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_KEY;
 
 /**
  * <p>
@@ -47,90 +60,244 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     RedisIdWorker redisIdWorker;
 
+    @Resource
+    private StreamOrderMonitor streamOrderMonitor;
+
+    @Resource
+    private SeckillStockGate seckillStockGate;
+
+    @Resource
+    private SeckillStockSharding seckillStockSharding;
+
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private RedisScriptRegistry redisScriptRegistry;
+    private RedisScript<Long> seckillScript;
+    private RedisScript<List> autoclaimScript;
+    private RedisScript<Long> deadLetterScript;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    @Value("${hmdp.seckill.order.consumer-name:}")
+    private String consumerName;
+    @Value("${hmdp.seckill.order.consumer-threads:4}")
+    private int consumerThreads;
+    @Value("${hmdp.seckill.order.batch-size:200}")
+    private int batchSize;
+    @Value("${hmdp.seckill.order.block-ms:2000}")
+    private long blockMs;
+    @Value("${hmdp.seckill.order.recovery-interval-ms:5000}")
+    private long recoveryIntervalMs;
+    @Value("${hmdp.seckill.order.max-backoff-ms:60000}")
+    private long maxBackoffMs;
+    @Value("${hmdp.seckill.order.min-idle-ms:30000}")
+    private long minIdleMs;
+    @Value("${hmdp.seckill.order.max-attempts:5}")
+    private int maxAttempts;
+
+    private ExecutorService seckillOrderExecutor;
     //这个注解的意思是当前类初始化完毕后执行
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        //0.预加载lua脚本，之后只发送EVALSHA
+        seckillScript = redisScriptRegistry.register("seckill", Long.class);
+        autoclaimScript = redisScriptRegistry.register("autoclaim", List.class);
+        deadLetterScript = redisScriptRegistry.register("deadletter", Long.class);
+        //1.确保消费者组存在 XGROUP CREATE stream.orders g1 0 MKSTREAM
+        createGroupIfAbsent();
+        //2.每个节点用自己的名称注册消费者，同一节点内每个线程再加上序号，保证组内消费者名称唯一
+        if(StrUtil.isBlank(consumerName)) {
+            consumerName = NetUtil.getLocalHostName();
+        }
+        AtomicInteger threadIndex = new AtomicInteger();
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerThreads + 1,
+                r -> new Thread(r, "seckill-order-" + threadIndex.getAndIncrement()));
+        for(int i = 0; i < consumerThreads; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(consumerName + "-" + i));
+        }
+        //3.每个节点一个恢复线程，认领所有消费者（包括已经宕机的）名下超时未确认的消息
+        seckillOrderExecutor.submit(new PendingOrderRecovery(consumerName + "-recovery"));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        seckillOrderExecutor.shutdownNow();
+    }
+
+    private void createGroupIfAbsent() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    STREAM_ORDERS_KEY.getBytes(StandardCharsets.UTF_8), STREAM_ORDERS_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            //BUSYGROUP 说明消费者组已经存在
+            log.debug("消费者组已存在：{}", e.getMessage());
+        }
     }
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024*1024);
+
     private class VoucherOrderHandler implements Runnable{
-        String queueName = "stream.orders";
+        private final Consumer consumer;
+
+        VoucherOrderHandler(String name) {
+            this.consumer = Consumer.from(STREAM_ORDERS_GROUP, name);
+        }
+
         @Override
         public void run() {
-            while(true) {
+            long backoff = 0;
+            while(!Thread.currentThread().isInterrupted()) {
                 try {
-                    //1. 获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 STREAMS streams.order 0
+                    //1. 获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 200 BLOCK 2000 STREAMS stream.orders >
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
+                            consumer,
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofMillis(blockMs)),
+                            StreamOffset.create(STREAM_ORDERS_KEY, ReadOffset.lastConsumed())
                     );
+                    backoff = 0;
                     //2. 判断消息获取是否成功
                     if(list == null || list.isEmpty()) {
-                        // 如果获取失败，说明pending-list没有异常消息，结束循环
-                        break;
+                        // 如果获取失败，说明没有消息，继续下一次循环
+                        continue;
                     }
-                    //3. 解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //4.获取成功 可以下单
-                    handleVoucherOrder(voucherOrder);
-
-                    //5. ACK确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1" , record.getId());
+                    //3. 处理这一批订单，处理失败的消息留在pending-list中，由恢复线程重试
+                    handleRecords(list);
                 } catch (Exception e) {
-                    log.error("处理pending-list异常",e);
-                    try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        ex.printStackTrace();
+                    if(Thread.currentThread().isInterrupted()) {
+                        break;
                     }
+                    //redis不可用时按指数退避，不再递归调用自己
+                    backoff = backoff == 0 ? 20 : Math.min(backoff * 2, maxBackoffMs);
+                    log.error("读取订单消息异常，{}ms后重试", backoff, e);
+                    sleep(backoff);
                 }
             }
         }
+    }
+
+    private class PendingOrderRecovery implements Runnable {
+        private final String name;
 
-        private void handlePendingList() {
-            while(true) {
+        PendingOrderRecovery(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            long delay = recoveryIntervalMs;
+            while(!Thread.currentThread().isInterrupted()) {
+                sleep(delay);
                 try {
-                    //1. 获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS streams.order
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-                    //2. 判断消息获取是否成功
-                    if(list == null || list.isEmpty()) {
-                        // 如果获取失败，说明没有消息，继续下一次循环
+                    int failed = recoverPendingList();
+                    //本轮有消息再次失败就加倍等待时间，全部成功则恢复正常间隔
+                    delay = failed > 0 ? Math.min(delay * 2, maxBackoffMs) : recoveryIntervalMs;
+                } catch (Exception e) {
+                    delay = Math.min(delay * 2, maxBackoffMs);
+                    log.error("处理pending-list异常，{}ms后重试", delay, e);
+                }
+            }
+        }
+
+        /**
+         * 用游标遍历一遍pending-list，认领空闲超时的消息
+         * @return 本轮处理失败的消息数
+         */
+        @SuppressWarnings("unchecked")
+        private int recoverPendingList() {
+            int failed = 0;
+            String cursor = "0-0";
+            do {
+                //1. XAUTOCLAIM stream.orders g1 name min-idle cursor COUNT 200
+                List<Object> result = redisScriptRegistry.execute(autoclaimScript, Collections.singletonList(STREAM_ORDERS_KEY),
+                        STREAM_ORDERS_GROUP, name, String.valueOf(minIdleMs), cursor, String.valueOf(batchSize));
+                if(result == null || result.isEmpty()) {
+                    break;
+                }
+                cursor = (String) result.get(0);
+                //2. 超过重试次数的消息转入死信队列，其余的重新下单
+                List<MapRecord<String, Object, Object>> records = new ArrayList<>(result.size() - 1);
+                for(int i = 1; i < result.size(); i++) {
+                    List<Object> entry = (List<Object>) result.get(i);
+                    String id = (String) entry.get(0);
+                    long deliveries = (Long) entry.get(1);
+                    List<Object> fields = entry.subList(2, entry.size());
+                    if(deliveries > maxAttempts) {
+                        deadLetter(id, deliveries, fields);
                         continue;
                     }
-                    //3. 解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //4.获取成功 可以下单
-                    handleVoucherOrder(voucherOrder);
-
-                    //5. ACK确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1" , record.getId());
-                } catch (Exception e) {
-                    handlePendingList();
-                    log.error("处理订单异常",e);
+                    Map<Object, Object> values = new HashMap<>();
+                    for(int j = 0; j + 1 < fields.size(); j += 2) {
+                        values.put(fields.get(j), fields.get(j + 1));
+                    }
+                    records.add(StreamRecords.newRecord().in(STREAM_ORDERS_KEY).withId(RecordId.of(id)).ofMap(values));
                 }
+                failed += handleRecords(records);
+            } while(!"0-0".equals(cursor) && !Thread.currentThread().isInterrupted());
+            return failed;
+        }
+
+        private void deadLetter(String id, long deliveries, List<Object> fields) {
+            log.error("订单消息{}已投递{}次仍然失败，转入死信队列", id, deliveries);
+            List<String> args = new ArrayList<>(fields.size() + 3);
+            args.add(STREAM_ORDERS_GROUP);
+            args.add(id);
+            args.add(String.valueOf(deliveries));
+            fields.forEach(f -> args.add(String.valueOf(f)));
+            redisScriptRegistry.execute(deadLetterScript, Arrays.asList(STREAM_ORDERS_KEY, STREAM_ORDERS_DLQ_KEY), args.toArray());
+        }
+    }
+
+    /**
+     * 先整批落库，整批失败时再逐条落库，保证一条坏消息不会拖住整批消息
+     * @return 处理失败、留在pending-list中的消息数
+     */
+    private int handleRecords(List<MapRecord<String, Object, Object>> list) {
+        if(list.isEmpty()) {
+            return 0;
+        }
+        try {
+            List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+            RecordId[] ids = new RecordId[list.size()];
+            for(int i = 0; i < list.size(); i++) {
+                //解析消息中的订单信息
+                voucherOrders.add(toVoucherOrder(list.get(i)));
+                ids[i] = list.get(i).getId();
             }
+            //一人一单和库存已经由lua脚本保证，这里不再逐单加锁，整批订单在一个事务里落库
+            proxy.createVoucherOrders(voucherOrders);
+            //一批消息只发一次 XACK stream.orders g1 id1 id2 ...
+            stringRedisTemplate.opsForStream().acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, ids);
+            streamOrderMonitor.recordLag(ids);
+            return 0;
+        } catch (Exception e) {
+            if(list.size() == 1) {
+                log.error("处理订单消息{}异常", list.get(0).getId(), e);
+                return 1;
+            }
+            log.error("批量处理订单异常，改为逐条处理", e);
+        }
+        int failed = 0;
+        for (MapRecord<String, Object, Object> record : list) {
+            try {
+                proxy.createVoucherOrders(Collections.singletonList(toVoucherOrder(record)));
+                stringRedisTemplate.opsForStream().acknowledge(STREAM_ORDERS_GROUP, record);
+                streamOrderMonitor.recordLag(record.getId());
+            } catch (Exception e) {
+                log.error("处理订单消息{}异常", record.getId(), e);
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    private VoucherOrder toVoucherOrder(MapRecord<String, Object, Object> record) {
+        Map<Object, Object> values = record.getValue();
+        return BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
     //阻塞队列：当一个线程去这个队列中获取元素的时候，如果队列中没有元素，为空线程就会阻塞，直到这个队列中有元素，这个线程会被唤醒
@@ -149,27 +316,6 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
 //    }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        //获取锁
-        boolean isLock = lock.tryLock();
-        //判断是否获取锁成功
-        if(!isLock) {
-            //获取锁成功，返回错误或者重试
-            log.error("不允许重复下单");
-            return;
-        }
-        try{
-
-            //为什么要这么写？不写后果是createVoucherOrder方法的Transactional失效
-            //确保这里拿到的是代理对象而不是目标对象
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            lock.unlock();
-        }
-    }
-
     //    @Override
 //    public Result seckillVoucher(Long voucherId) {
 //        //1.查询优惠卷
@@ -214,23 +360,42 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //            lock.unlock();
 //        }
 //    }
+    //消费者线程在启动时就会处理pending-list，这时还没有请求进来设置代理对象，所以直接注入自身的代理
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
     @Override
     public Result seckillVoucher(Long voucherId) {
+        //0.本节点已经知道卖完了，直接拒绝，不访问redis
+        if(seckillStockGate.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        //判断是否在秒杀时间窗口内，窗口缓存在本地
+        int windowState = seckillStockGate.windowState(voucherId);
+        if(windowState != SeckillStockGate.OPEN) {
+            return Result.fail(windowState == SeckillStockGate.NOT_STARTED ? "秒杀尚未开始！" : "秒杀已经结束！");
+        }
+        long requestAt = System.currentTimeMillis();
         //获取用户
         Long userId = UserHolder.getUser().getId();
 
         long orderId = redisIdWorker.nextId("order");
-        //1.执行lua脚本
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(), voucherId.toString(), userId.toString(), String.valueOf(orderId));
+        //1.执行lua脚本，开启库存分片时在用户所在的分片上执行
+        int r;
+        if(seckillStockSharding.isEnabled()) {
+            r = seckillStockSharding.seckill(voucherId, userId, orderId);
+        } else {
+            Long result = redisScriptRegistry.execute(seckillScript, Collections.emptyList(), voucherId.toString(), userId.toString(), String.valueOf(orderId));
+            r = result.intValue();
+        }
         //2.判断结果是否为0
-        int r = result.intValue();
         if(r != 0) {
             //2.1 不为0 代表没有购买资格
+            if(r == 1) {
+                seckillStockGate.markSoldOut(voucherId, requestAt);
+            }
             return Result.fail(r == 1 ? "库存不足":"不能重复下单");
         }
-        //获取代理对象（事务）
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
         //3.返回订单ID
         return Result.ok(orderId);
     }
@@ -291,4 +456,36 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
 
     }
+
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        if(voucherOrders.isEmpty()) {
+            return;
+        }
+        //1.过滤掉已经落库的订单（ACK之前宕机，消息会被重新投递）
+        List<Long> orderIds = voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        Set<Long> existIds = new HashSet<>(listObjs(new QueryWrapper<VoucherOrder>().select("id").in("id", orderIds),
+                id -> Long.valueOf(id.toString())));
+        //2.按优惠券分组，同一张券只扣减一次库存 stock = stock - k
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = voucherOrders.stream()
+                .filter(order -> !existIds.contains(order.getId()))
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        List<VoucherOrder> toSave = new ArrayList<>(voucherOrders.size());
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            int k = entry.getValue().size();
+            boolean success = seckillVoucherService.update().setSql("stock = stock - " + k)
+                    .eq("voucher_id", entry.getKey()).ge("stock", k).update();
+            if(!success) {
+                //redis中的库存和数据库不一致。不能丢弃已经告诉用户下单成功的订单：抛出异常回滚整批，
+                //调用方改为逐条落库，仍然失败的消息留在pending-list中重试，最终转入死信队列
+                throw new IllegalStateException("库存不足，优惠券：" + entry.getKey() + "，订单数：" + k);
+            }
+            toSave.addAll(entry.getValue());
+        }
+        //3.一条多值INSERT写入所有订单
+        if(!toSave.isEmpty()) {
+            getBaseMapper().insertBatch(toSave);
+        }
+    }
 }
@@ -0,0 +1,247 @@
+package com.hmdp.utils;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 二进制编码，适用于字段只有 Long、Integer、Double、Boolean、String、LocalDateTime 的实体（Shop、Blog、UserDTO、Voucher）
+ * 格式：
+ * 1字节 魔数 | 8字节 逻辑过期时间 | 8字节 重建耗时 | 4字节 字段指纹 | 空值位图 | 按字段名排序的非空字段
+ * 过期时间在固定位置，不解码对象就能通过 {@link #readExpireAt(byte[])} 判断是否过期；
+ * 实体增删字段后指纹变化，旧数据解码返回null，按未命中重新加载
+ */
+@Component
+@ConditionalOnProperty(name = "hmdp.cache.codec", havingValue = "binary")
+public class BinaryCacheCodec implements ICacheCodec {
+    private static final byte MAGIC = (byte) 0xB1;
+    private static final int HEADER_LENGTH = 1 + 8 + 8 + 4;
+    private static final int LONG = 1, INT = 2, DOUBLE = 3, BOOLEAN = 4, STRING = 5, DATE_TIME = 6;
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] encode(Object value) {
+        return encode(value, Long.MAX_VALUE, 0);
+    }
+
+    @Override
+    public byte[] encode(Object value, long expireAt, long delta) {
+        Schema schema = schema(value.getClass());
+        Output out = new Output(128);
+        //1.头部
+        out.write(MAGIC);
+        out.writeLong(expireAt);
+        out.writeLong(delta);
+        out.writeInt(schema.fingerprint);
+        //2.空值位图
+        Object[] values = new Object[schema.fields.length];
+        byte[] nulls = new byte[(values.length + 7) / 8];
+        try {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = schema.fields[i].get(value);
+                if (values[i] == null) {
+                    nulls[i >> 3] |= 1 << (i & 7);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        out.write(nulls, 0, nulls.length);
+        //3.非空字段
+        for (int i = 0; i < values.length; i++) {
+            Object v = values[i];
+            if (v == null) {
+                continue;
+            }
+            switch (schema.tags[i]) {
+                case LONG: out.writeLong((Long) v); break;
+                case INT: out.writeInt((Integer) v); break;
+                case DOUBLE: out.writeLong(Double.doubleToLongBits((Double) v)); break;
+                case BOOLEAN: out.write((Boolean) v ? 1 : 0); break;
+                case STRING:
+                    byte[] s = ((String) v).getBytes(StandardCharsets.UTF_8);
+                    out.writeVarInt(s.length);
+                    out.write(s, 0, s.length);
+                    break;
+                default:
+                    LocalDateTime t = (LocalDateTime) v;
+                    out.writeLong(t.toEpochSecond(ZoneOffset.UTC));
+                    out.writeInt(t.getNano());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        CacheEntry<R> entry = decodeEntry(bytes, type);
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * 只读取头部的逻辑过期时间，格式不对时返回-1
+     */
+    @Override
+    public long readExpireAt(byte[] bytes) {
+        if (bytes == null || bytes.length < HEADER_LENGTH || bytes[0] != MAGIC) {
+            return -1;
+        }
+        return ByteBuffer.wrap(bytes, 1, 8).getLong();
+    }
+
+    @Override
+    public <R> CacheEntry<R> decodeEntry(byte[] bytes, Class<R> type) {
+        if (bytes.length < HEADER_LENGTH || bytes[0] != MAGIC) {
+            return null;
+        }
+        Schema schema = schema(type);
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        in.get();
+        long expireAt = in.getLong();
+        long delta = in.getLong();
+        if (in.getInt() != schema.fingerprint) {
+            return null;
+        }
+        byte[] nulls = new byte[(schema.fields.length + 7) / 8];
+        in.get(nulls);
+        try {
+            R r = type.cast(schema.constructor.newInstance());
+            for (int i = 0; i < schema.fields.length; i++) {
+                if ((nulls[i >> 3] & (1 << (i & 7))) != 0) {
+                    continue;
+                }
+                Object v;
+                switch (schema.tags[i]) {
+                    case LONG: v = in.getLong(); break;
+                    case INT: v = in.getInt(); break;
+                    case DOUBLE: v = Double.longBitsToDouble(in.getLong()); break;
+                    case BOOLEAN: v = in.get() != 0; break;
+                    case STRING:
+                        int length = readVarInt(in);
+                        v = new String(bytes, in.position(), length, StandardCharsets.UTF_8);
+                        in.position(in.position() + length);
+                        break;
+                    default:
+                        v = LocalDateTime.ofEpochSecond(in.getLong(), in.getInt(), ZoneOffset.UTC);
+                }
+                schema.fields[i].set(r, v);
+            }
+            return new CacheEntry<>(r, expireAt, delta);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private Schema schema(Class<?> type) {
+        return schemas.computeIfAbsent(type, Schema::new);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * 一个类参与编码的字段，按字段名排序
+     */
+    private static class Schema {
+        final Constructor<?> constructor;
+        final Field[] fields;
+        final int[] tags;
+        final int fingerprint;
+
+        Schema(Class<?> type) {
+            try {
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(type.getName() + "没有无参构造函数", e);
+            }
+            List<Field> list = new ArrayList<>();
+            for (Field f : type.getDeclaredFields()) {
+                if (!Modifier.isStatic(f.getModifiers()) && !Modifier.isTransient(f.getModifiers())) {
+                    list.add(f);
+                }
+            }
+            list.sort(Comparator.comparing(Field::getName));
+            fields = list.toArray(new Field[0]);
+            tags = new int[fields.length];
+            StringBuilder signature = new StringBuilder(type.getName());
+            for (int i = 0; i < fields.length; i++) {
+                fields[i].setAccessible(true);
+                tags[i] = tagOf(type, fields[i]);
+                signature.append(',').append(fields[i].getName()).append(':').append(tags[i]);
+            }
+            fingerprint = signature.toString().hashCode();
+        }
+
+        private static int tagOf(Class<?> type, Field field) {
+            Class<?> c = field.getType();
+            if (c == Long.class) {
+                return LONG;
+            }
+            if (c == Integer.class) {
+                return INT;
+            }
+            if (c == Double.class) {
+                return DOUBLE;
+            }
+            if (c == Boolean.class) {
+                return BOOLEAN;
+            }
+            if (c == String.class) {
+                return STRING;
+            }
+            if (c == LocalDateTime.class) {
+                return DATE_TIME;
+            }
+            throw new IllegalArgumentException("二进制编码不支持" + type.getSimpleName() + "." + field.getName() + "的类型" + c.getSimpleName());
+        }
+    }
+
+    private static class Output extends ByteArrayOutputStream {
+        Output(int size) {
+            super(size);
+        }
+
+        void writeLong(long v) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (v >>> shift));
+            }
+        }
+
+        void writeInt(int v) {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                write(v >>> shift);
+            }
+        }
+
+        void writeVarInt(int v) {
+            while ((v & ~0x7F) != 0) {
+                write((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            write(v);
+        }
+    }
+}
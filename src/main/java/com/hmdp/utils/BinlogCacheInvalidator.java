@@ -0,0 +1,424 @@
+package com.hmdp.utils;
+
+import com.github.shyiko.mysql.binlog.BinaryLogClient;
+import com.github.shyiko.mysql.binlog.event.DeleteRowsEventData;
+import com.github.shyiko.mysql.binlog.event.Event;
+import com.github.shyiko.mysql.binlog.event.EventData;
+import com.github.shyiko.mysql.binlog.event.EventHeaderV4;
+import com.github.shyiko.mysql.binlog.event.RotateEventData;
+import com.github.shyiko.mysql.binlog.event.TableMapEventData;
+import com.github.shyiko.mysql.binlog.event.UpdateRowsEventData;
+import com.github.shyiko.mysql.binlog.event.WriteRowsEventData;
+import com.github.shyiko.mysql.binlog.event.XidEventData;
+import com.github.shyiko.mysql.binlog.event.deserialization.EventDeserializer;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.service.IShopTypeService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 订阅mysql binlog，在数据变更后异步删除缓存、维护店铺的GEO集合和布隆过滤器，所有写入路径（包括直接执行的SQL）都会触发
+ * binlog事件在客户端的单个线程里按顺序处理，失败时按指数退避重试；每个事务提交后把位点保存到redis，重启后从位点继续。
+ * 重试多次仍然失败的事件不会被跳过：把 表:id 放入修复集合 cdc:repair，由定时任务按数据库中的最新数据重新处理；
+ * 连修复集合也写不进去（通常是redis不可用）时一直重试，暂停消费后面的事件，直到恢复。
+ * 只需要在一个节点上开启，要求mysql开启 binlog_format=ROW，账号有 REPLICATION SLAVE、REPLICATION CLIENT 权限
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.cdc.enabled", havingValue = "true")
+public class BinlogCacheInvalidator implements BinaryLogClient.EventListener {
+    private static final String SHOP_TABLE = "tb_shop";
+    private static final String BLOG_TABLE = "tb_blog";
+    private static final String SHOP_TYPE_TABLE = "tb_shop_type";
+    private static final String USER_TABLE = "tb_user";
+    private final StringRedisTemplate stringRedisTemplate;
+    private final CacheClient cacheClient;
+    private final JdbcTemplate jdbcTemplate;
+    private final IShopTypeService shopTypeService;
+    private final ShopGeoIndex shopGeoIndex;
+    private final ShopNameIndex shopNameIndex;
+    private final IdBloomFilter idBloomFilter;
+    private final MeterRegistry meterRegistry;
+    /*
+    binlog中的表id -> 表名，来自TABLE_MAP事件
+    * */
+    private final Map<Long, String> tables = new HashMap<>();
+    /*
+    表名 -> 列名 -> 列下标，ROW格式的事件里只有按顺序排列的列值
+    * */
+    private final Map<String, Map<String, Integer>> columns = new HashMap<>();
+    private BinaryLogClient client;
+    private String binlogFilename;
+
+    @Value("${hmdp.cdc.host:127.0.0.1}")
+    private String host;
+
+    @Value("${hmdp.cdc.port:3306}")
+    private int port;
+
+    @Value("${hmdp.cdc.username:root}")
+    private String username;
+
+    @Value("${hmdp.cdc.password:}")
+    private String password;
+
+    @Value("${hmdp.cdc.database:hmdp}")
+    private String database;
+
+    @Value("${hmdp.cdc.server-id:65535}")
+    private long serverId;
+
+    @Value("${hmdp.cdc.max-attempts:5}")
+    private int maxAttempts;
+
+    public BinlogCacheInvalidator(StringRedisTemplate stringRedisTemplate, CacheClient cacheClient, JdbcTemplate jdbcTemplate,
+                                  IShopTypeService shopTypeService, ShopGeoIndex shopGeoIndex, ShopNameIndex shopNameIndex,
+                                  IdBloomFilter idBloomFilter, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheClient = cacheClient;
+        this.jdbcTemplate = jdbcTemplate;
+        this.shopTypeService = shopTypeService;
+        this.shopGeoIndex = shopGeoIndex;
+        this.shopNameIndex = shopNameIndex;
+        this.idBloomFilter = idBloomFilter;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void start() throws Exception {
+        columns.put(SHOP_TABLE, loadColumns(SHOP_TABLE));
+        columns.put(BLOG_TABLE, loadColumns(BLOG_TABLE));
+        columns.put(USER_TABLE, loadColumns(USER_TABLE));
+        client = new BinaryLogClient(host, port, username, password);
+        client.setServerId(serverId);
+        client.setKeepAlive(true);
+        EventDeserializer deserializer = new EventDeserializer();
+        deserializer.setCompatibilityMode(EventDeserializer.CompatibilityMode.DATE_AND_TIME_AS_LONG);
+        client.setEventDeserializer(deserializer);
+        //1.从上次保存的位点继续，没有位点时从当前位置开始
+        Map<Object, Object> position = stringRedisTemplate.opsForHash().entries(positionKey());
+        if (!position.isEmpty()) {
+            binlogFilename = position.get("file").toString();
+            client.setBinlogFilename(binlogFilename);
+            client.setBinlogPosition(Long.parseLong(position.get("position").toString()));
+        }
+        client.registerEventListener(this);
+        //2.在客户端自己的线程里读取binlog，断开后自动重连
+        client.connect(10000);
+        log.info("开始订阅binlog，位点：{}:{}", client.getBinlogFilename(), client.getBinlogPosition());
+    }
+
+    @PreDestroy
+    private void stop() throws Exception {
+        client.disconnect();
+    }
+
+    @Override
+    public void onEvent(Event event) {
+        EventData data = event.getData();
+        if (data instanceof RotateEventData) {
+            binlogFilename = ((RotateEventData) data).getBinlogFilename();
+        } else if (data instanceof TableMapEventData) {
+            TableMapEventData tableMap = (TableMapEventData) data;
+            if (database.equals(tableMap.getDatabase())) {
+                tables.put(tableMap.getTableId(), tableMap.getTable());
+            }
+        } else if (data instanceof WriteRowsEventData) {
+            WriteRowsEventData rows = (WriteRowsEventData) data;
+            handle(rows.getTableId(), null, rows.getRows());
+        } else if (data instanceof UpdateRowsEventData) {
+            UpdateRowsEventData rows = (UpdateRowsEventData) data;
+            List<Serializable[]> before = new ArrayList<>(rows.getRows().size());
+            List<Serializable[]> after = new ArrayList<>(rows.getRows().size());
+            for (Map.Entry<Serializable[], Serializable[]> row : rows.getRows()) {
+                before.add(row.getKey());
+                after.add(row.getValue());
+            }
+            handle(rows.getTableId(), before, after);
+        } else if (data instanceof DeleteRowsEventData) {
+            DeleteRowsEventData rows = (DeleteRowsEventData) data;
+            handle(rows.getTableId(), rows.getRows(), null);
+        } else if (data instanceof XidEventData) {
+            //事务提交，保存位点
+            savePosition(((EventHeaderV4) event.getHeader()).getNextPosition());
+        }
+    }
+
+    /**
+     * @param before 变更前的行，新增时为null
+     * @param after 变更后的行，删除时为null
+     */
+    private void handle(long tableId, List<Serializable[]> before, List<Serializable[]> after) {
+        String table = tables.get(tableId);
+        if (SHOP_TYPE_TABLE.equals(table)) {
+            //店铺类型整体缓存，一个事件只需要重新加载一次
+            retry(table, null, shopTypeService::loadTypeList);
+            return;
+        }
+        if (!SHOP_TABLE.equals(table) && !BLOG_TABLE.equals(table) && !USER_TABLE.equals(table)) {
+            return;
+        }
+        int size = before != null ? before.size() : after.size();
+        for (int i = 0; i < size; i++) {
+            Serializable[] oldRow = before == null ? null : before.get(i);
+            Serializable[] newRow = after == null ? null : after.get(i);
+            Object id = value(newRow != null ? newRow : oldRow, columns.get(table), "id");
+            if (SHOP_TABLE.equals(table)) {
+                retry(table, id, () -> onShopChanged(oldRow, newRow));
+            } else if (BLOG_TABLE.equals(table)) {
+                retry(table, id, () -> onRowChanged(BLOG_TABLE, CACHE_BLOG_KEY, oldRow, newRow));
+            } else {
+                //用户的昵称、头像缓存在 cache:user:id（笔记点赞列表批量查询），应用里没有修改用户的接口，只能从binlog得知变更
+                retry(table, id, () -> onRowChanged(USER_TABLE, CACHE_USER_KEY, oldRow, newRow));
+            }
+        }
+    }
+
+    /**
+     * 失败时重试，重试期间阻塞后面的事件，保证同一行的变更按顺序生效
+     * 达到最大次数后把这一行放入修复集合再处理后面的事件，放不进去时继续重试，不会跳过
+     * @param id 变更的行id，整表重新加载时为null
+     */
+    private void retry(String table, Object id, Runnable action) {
+        long backoffMs = 100;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                action.run();
+                return;
+            } catch (Exception e) {
+                if (attempt >= maxAttempts && park(table, id, e)) {
+                    return;
+                }
+                log.warn("处理{}的binlog事件失败，{}ms后第{}次重试", table, backoffMs, attempt, e);
+                sleep(backoffMs);
+                backoffMs = Math.min(backoffMs * 2, 5000);
+            }
+        }
+    }
+
+    /**
+     * 放入修复集合，由 {@link #repair()} 按数据库中的最新数据重新处理
+     * @return 是否放入成功
+     */
+    private boolean park(String table, Object id, Exception cause) {
+        try {
+            stringRedisTemplate.opsForSet().add(CDC_REPAIR_KEY, id == null ? table : table + ":" + id);
+        } catch (Exception e) {
+            log.error("{}:{}放入修复集合失败，暂停消费binlog，继续重试", table, id, e);
+            return false;
+        }
+        Counter.builder("cdc.events.failed").tag("table", table)
+                .description("重试后仍然失败、转入修复集合的binlog事件数").register(meterRegistry).increment();
+        log.error("处理{}:{}的binlog事件失败，已放入修复集合{}", table, id, CDC_REPAIR_KEY, cause);
+        return true;
+    }
+
+    /**
+     * 按数据库中的最新数据重新处理修复集合中的行，仍然失败的放回去等下一次
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cdc.repair-interval-ms:10000}")
+    public void repair() {
+        List<String> members = stringRedisTemplate.opsForSet().pop(CDC_REPAIR_KEY, 100);
+        if (members == null) {
+            return;
+        }
+        for (String member : members) {
+            int i = member.indexOf(':');
+            String table = i < 0 ? member : member.substring(0, i);
+            try {
+                if (i < 0) {
+                    shopTypeService.loadTypeList();
+                } else if (SHOP_TABLE.equals(table)) {
+                    repairShop(member.substring(i + 1));
+                } else {
+                    repairRow(table, table.equals(BLOG_TABLE) ? CACHE_BLOG_KEY : CACHE_USER_KEY, member.substring(i + 1));
+                }
+                log.info("修复{}完成", member);
+            } catch (Exception e) {
+                log.warn("修复{}失败，下次再试", member, e);
+                stringRedisTemplate.opsForSet().add(CDC_REPAIR_KEY, member);
+            }
+        }
+    }
+
+    /**
+     * 变更前的类型已经不知道了，从其他类型的GEO集合中移除，再按当前的数据处理
+     */
+    private void repairShop(String id) {
+        Serializable[] row = loadRow(SHOP_TABLE, id);
+        Object type = row == null ? null : value(row, columns.get(SHOP_TABLE), "type_id");
+        Long typeId = type == null ? null : ((Number) type).longValue();
+        for (ShopType shopType : shopTypeService.list()) {
+            if (!shopType.getId().equals(typeId)) {
+                stringRedisTemplate.opsForGeo().remove(SHOP_GEO_KEY + shopType.getId(), id);
+            }
+        }
+        if (row != null) {
+            //按新增处理，新增时没有加入的布隆过滤器也会补上
+            onShopChanged(null, row);
+            return;
+        }
+        cacheClient.delete(CACHE_SHOP_KEY + id);
+        shopGeoIndex.remove(Long.valueOf(id));
+        shopNameIndex.remove(Long.valueOf(id));
+    }
+
+    private void repairRow(String table, String keyPrefix, String id) {
+        if (loadRow(table, id) != null) {
+            idBloomFilter.add(keyPrefix, Long.valueOf(id));
+        }
+        cacheClient.delete(keyPrefix + id);
+    }
+
+    /**
+     * 按binlog中的列顺序读取数据库中的一行，不存在时返回null
+     */
+    private Serializable[] loadRow(String table, String id) {
+        Map<String, Integer> map = columns.get(table);
+        List<Serializable[]> rows = jdbcTemplate.query("SELECT * FROM " + table + " WHERE id = ?", (rs, n) -> {
+            Serializable[] row = new Serializable[map.size()];
+            map.forEach((column, index) -> {
+                try {
+                    row[index] = (Serializable) rs.getObject(column);
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            return row;
+        }, Long.valueOf(id));
+        return rows.isEmpty() ? null : rows.get(0);
+    }
+
+    private void onShopChanged(Serializable[] oldRow, Serializable[] newRow) {
+        Map<String, Integer> shop = columns.get(SHOP_TABLE);
+        Serializable[] row = newRow != null ? newRow : oldRow;
+        String id = value(row, shop, "id").toString();
+        //1.新增的店铺加入布隆过滤器，直接执行的SQL、批量导入不经过saveShop，不加进去会一直被拦截
+        if (oldRow == null) {
+            idBloomFilter.add(CACHE_SHOP_KEY, Long.valueOf(id));
+        }
+        //2.删除店铺缓存，同时清除所有节点的本地缓存
+        cacheClient.delete(CACHE_SHOP_KEY + id);
+        //3.维护GEO集合，类型变化时从旧类型的集合中移除
+        Object oldType = oldRow == null ? null : value(oldRow, shop, "type_id");
+        Object newType = newRow == null ? null : value(newRow, shop, "type_id");
+        if (oldType != null && !Objects.equals(oldType, newType)) {
+            stringRedisTemplate.opsForGeo().remove(SHOP_GEO_KEY + oldType, id);
+        }
+        Object newX = newRow == null ? null : value(newRow, shop, "x");
+        Object newY = newRow == null ? null : value(newRow, shop, "y");
+        if (newType != null && (newX == null || newY == null)) {
+            //坐标被清空，和没有类型一样不参与附近搜索
+            stringRedisTemplate.opsForGeo().remove(SHOP_GEO_KEY + newType, id);
+            newType = null;
+        }
+        if (newType != null) {
+            double x = ((Number) newX).doubleValue();
+            double y = ((Number) newY).doubleValue();
+            stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + newType, new Point(x, y), id);
+            //4.同步所有节点的坐标索引
+            Object avgPrice = value(newRow, shop, "avg_price");
+            Object score = value(newRow, shop, "score");
+            Object openHours = value(newRow, shop, "open_hours");
+            shopGeoIndex.update(new Shop().setId(Long.valueOf(id)).setTypeId(((Number) newType).longValue()).setX(x).setY(y)
+                    .setAvgPrice(avgPrice == null ? null : ((Number) avgPrice).longValue())
+                    .setScore(score == null ? null : ((Number) score).intValue())
+                    .setOpenHours(string(openHours)));
+        } else {
+            shopGeoIndex.remove(Long.valueOf(id));
+        }
+        //5.同步所有节点的名称索引
+        if (newRow != null) {
+            Object comments = value(newRow, shop, "comments");
+            shopNameIndex.update(new Shop().setId(Long.valueOf(id))
+                    .setName(string(value(newRow, shop, "name"))).setArea(string(value(newRow, shop, "area")))
+                    .setComments(comments == null ? null : ((Number) comments).intValue()));
+        } else {
+            shopNameIndex.remove(Long.valueOf(id));
+        }
+    }
+
+    /**
+     * 只按id缓存的表：新增时加入布隆过滤器，任何变更都删除缓存
+     */
+    private void onRowChanged(String table, String keyPrefix, Serializable[] oldRow, Serializable[] newRow) {
+        Serializable[] row = newRow != null ? newRow : oldRow;
+        Object id = value(row, columns.get(table), "id");
+        if (oldRow == null) {
+            idBloomFilter.add(keyPrefix, ((Number) id).longValue());
+        }
+        cacheClient.delete(keyPrefix + id);
+    }
+
+    private static Object value(Serializable[] row, Map<String, Integer> columns, String column) {
+        return row[columns.get(column)];
+    }
+
+    /**
+     * 字符串列按连接器的配置可能是String或者byte[]
+     */
+    private static String string(Object value) {
+        return value instanceof byte[] ? new String((byte[]) value, StandardCharsets.UTF_8) : (String) value;
+    }
+
+    private Map<String, Integer> loadColumns(String table) {
+        Map<String, Integer> map = new HashMap<>();
+        jdbcTemplate.query("SELECT COLUMN_NAME, ORDINAL_POSITION FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ?",
+                rs -> {
+                    map.put(rs.getString(1).toLowerCase(), rs.getInt(2) - 1);
+                }, database, table);
+        if (map.isEmpty()) {
+            throw new IllegalStateException("表不存在：" + database + "." + table);
+        }
+        return map;
+    }
+
+    private void savePosition(long position) {
+        if (binlogFilename == null) {
+            return;
+        }
+        try {
+            Map<String, String> map = new HashMap<>(2);
+            map.put("file", binlogFilename);
+            map.put("position", String.valueOf(position));
+            stringRedisTemplate.opsForHash().putAll(positionKey(), map);
+        } catch (Exception e) {
+            //保存失败最多导致重启后重复处理一部分事件，删除缓存是幂等的
+            log.warn("保存binlog位点失败", e);
+        }
+    }
+
+    private String positionKey() {
+        return CDC_POSITION_KEY + serverId;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,54 +1,175 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
+/**
+ * 两级缓存：进程内caffeine为一级，redis为二级
+ * 一级缓存保存反序列化之后的对象，命中时没有网络开销也不需要解码，所以调用方不能修改返回的对象。
+ * redis中的值由 {@link ICacheCodec} 编码，可以在json和二进制之间切换
+ * 通过 {@link #delete(String)} 删除缓存时经redis发布订阅通知所有节点清除一级缓存
+ * 查询前先用布隆过滤器 {@link IdBloomFilter} 拦截一定不存在的id。
+ * 通过 {@link HotKeyDetector} 统计访问频率，热点key额外保存一份短时间的本地副本。
+ * 缓存未命中时同一个节点上对同一个key的并发请求共享一次加载（single-flight），只有加载的线程去竞争分布式锁
+ */
 @Slf4j
 @Component
 public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
+    private final IdBloomFilter idBloomFilter;
+    private final ICacheCodec codec;
+    private final boolean localEnabled;
+    private final Cache<String, LocalEntry> localCache;
+    private final HotKeyDetector hotKeyDetector;
+    /*
+    热点key的本地副本，有效期很短，一级缓存关闭时热点key也不会每次都访问redis
+    * */
+    private final Cache<String, LocalEntry> hotCache;
+    /*
+    key -> 本节点正在进行的加载，其余线程等待这个future
+    * */
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    @Value("${hmdp.cache.load-timeout-ms:3000}")
+    private long loadTimeoutMs;
+
+    @Value("${hmdp.cache.xfetch-beta:0}")
+    private double xfetchBeta;
+
+    @Value("${hmdp.cache.rebuild.threads:4}")
+    private int rebuildThreads;
+
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int rebuildQueueCapacity;
+
+    /*
+    逻辑过期的异步重建线程池，队列有界，满了之后放弃这次刷新
+    * */
+    private ThreadPoolExecutor rebuildExecutor;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, IdBloomFilter idBloomFilter, ICacheCodec codec, HotKeyDetector hotKeyDetector,
+                       RedisMessageListenerContainer container, MeterRegistry meterRegistry,
+                       @Value("${hmdp.cache.local.enabled:true}") boolean localEnabled,
+                       @Value("${hmdp.cache.local.maximum-size:10000}") long maximumSize,
+                       @Value("${hmdp.cache.local.expire-seconds:30}") long expireSeconds,
+                       @Value("${hmdp.cache.hot-key.capacity:1000}") long hotCapacity,
+                       @Value("${hmdp.cache.hot-key.local-ttl-ms:2000}") long hotTtlMs) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.idBloomFilter = idBloomFilter;
+        this.codec = codec;
+        this.localEnabled = localEnabled;
+        this.localCache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.hotKeyDetector = hotKeyDetector;
+        this.hotCache = Caffeine.newBuilder()
+                .maximumSize(hotCapacity)
+                .expireAfterWrite(hotTtlMs, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, localCache, "local");
+        CaffeineCacheMetrics.monitor(meterRegistry, hotCache, "hot");
+        container.addMessageListener((message, pattern) ->
+                invalidateLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        rebuildExecutor = new ThreadPoolExecutor(rebuildThreads, rebuildThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(rebuildQueueCapacity), r -> {
+                    Thread thread = new Thread(r, "cache-rebuild-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        rebuildExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        rebuildExecutor.shutdown();
     }
+
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        setRaw(key, codec.encode(value), unit.toMillis(time));
+        invalidateLocal(key);
     }
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setWithLogicalExpire(key, value, time, unit, 0);
+    }
 
+    /**
+     * @param delta 重建这条缓存耗费的毫秒数，XFetch据此决定提前刷新的时间
+     */
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, long delta) {
+        long expireAt = System.currentTimeMillis() + unit.toMillis(time);
+        setRaw(key, codec.encode(value, expireAt, delta), 0);
+        invalidateLocal(key);
+    }
+
+    /**
+     * 删除redis中的缓存，并通知所有节点（包括自己）清除一级缓存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidateLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
     }
 
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time, TimeUnit unit){
         String key = keyPrefix+ id;
+        //布隆过滤器判断id一定不存在，不访问redis和数据库
+        if(!idBloomFilter.mightContain(keyPrefix, id)) {
+            return null;
+        }
+        //0.先查一级缓存，空值也会缓存
+        LocalEntry local = getLocal(key);
+        if(local != null) {
+            return type.cast(local.value);
+        }
         //1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if(StrUtil.isNotBlank(json)) {
+        //2.判断是否存在，命中空值时返回null
+        CacheEntry<R> entry = readAny(key, getRaw(key), type);
+        if(entry != null) {
             //3.存在 直接返回
-            return JSONUtil.toBean(json,type);
-        }
-        //判断命中的是否是空值
-        if(json != null) {
-            //返回一个错误信息
-            return null;
+            return entry.getValue();
         }
         //4.不存在,根据id查询数据库
         R r = dbFallback.apply(id);
@@ -62,54 +183,358 @@ public class CacheClient {
                 //7 返回
         return r;
     }
-    private static final ExecutorService CACHE_REBUILD_EXECUTION = Executors.newFixedThreadPool(10);
+    /**
+     * 互斥锁解决缓存击穿
+     * 同一个节点上的并发未命中只有一个线程加载，其余线程等待它的结果；节点之间通过互斥锁保证只有一个节点查询数据库，
+     * 没有拿到锁的节点轮询redis等待重建完成，等待都有超时，不会无限递归重试
+     */
+    public <R,ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        //布隆过滤器判断id一定不存在，不访问redis和数据库
+        if(!idBloomFilter.mightContain(keyPrefix, id)) {
+            return null;
+        }
+        //0.先查一级缓存
+        LocalEntry local = getLocal(key);
+        if(local != null) {
+            return type.cast(local.value);
+        }
+        //1.从redis查询缓存
+        CacheEntry<R> entry = readAny(key, getRaw(key), type);
+        if(entry != null) {
+            return entry.getValue();
+        }
+        //2.未命中，加载后写入redis
+        return singleFlight(key, type, () -> loadWithMutex(key, id, dbFallback,
+                bytes -> readAny(key, bytes, type), (r, cost) -> this.set(key, r, time, unit)));
+    }
+
+    /**
+     * 同一个节点上对同一个key的并发加载只执行一次，本节点已经有线程在加载时等待它的结果
+     */
+    private <R> R singleFlight(String key, Class<R> type, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> loading = inFlight.putIfAbsent(key, future);
+        if(loading != null) {
+            return type.cast(await(key, loading));
+        }
+        //由当前线程负责加载
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * 获取互斥锁后查询数据库并写入redis，没有拿到锁时轮询redis等待别的节点重建
+     * @param reader 解析redis中的值，返回null表示未命中
+     * @param writer 写入redis，第二个参数是查询数据库的耗时（毫秒）
+     */
+    private <R,ID> R loadWithMutex(String key, ID id, Function<ID,R> dbFallback, Function<byte[],CacheEntry<R>> reader, BiConsumer<R,Long> writer) {
+        String lockKey = "lock:" + key;
+        long deadline = System.currentTimeMillis() + loadTimeoutMs;
+        long sleepMs = 10;
+        while (true) {
+            //3.1获取互斥锁
+            if(tryLock(lockKey)) {
+                try {
+                    //3.2拿到锁之后再查一次，别的节点可能刚重建完
+                    CacheEntry<R> entry = reader.apply(getRaw(key));
+                    if(entry != null) {
+                        return entry.getValue();
+                    }
+                    //3.3查询数据库并写入redis
+                    long start = System.currentTimeMillis();
+                    R r = dbFallback.apply(id);
+                    if(r == null) {
+                        stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
+                        return null;
+                    }
+                    writer.accept(r, System.currentTimeMillis() - start);
+                    return r;
+                } finally {
+                    unlock(lockKey);
+                }
+            }
+            //3.4别的节点在重建，等待后查看redis
+            if(System.currentTimeMillis() + sleepMs > deadline) {
+                throw new IllegalStateException("等待缓存重建超时：" + key);
+            }
+            try {
+                Thread.sleep(sleepMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待缓存重建被中断：" + key, e);
+            }
+            sleepMs = Math.min(sleepMs * 2, 200);
+            CacheEntry<R> entry = reader.apply(getRaw(key));
+            if(entry != null) {
+                return entry.getValue();
+            }
+        }
+    }
+
+    private Object await(String key, CompletableFuture<Object> loading) {
+        try {
+            return loading.get(loadTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("等待缓存加载超时：" + key, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待缓存加载被中断：" + key, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("缓存加载失败：" + key, e.getCause());
+        }
+    }
 
+    /**
+     * 逻辑过期：缓存在redis中不设置ttl，过期后先返回旧数据，由重建线程池异步刷新，未命中时同步加载
+     * 开启XFetch（hmdp.cache.xfetch-beta大于0）后，按 now - delta * beta * ln(random) >= expireTime 提前刷新，
+     * delta是上一次重建的耗时，重建越慢越早刷新，不同节点的刷新时间被随机打散，不会集中在过期的那一刻
+     */
     public <R,ID> R queryWithLogicalExpire(String keyPrefix,ID id,Class<R> type,Function<ID,R> dbFallback,Long time, TimeUnit unit){
-        String key = CACHE_SHOP_KEY+ id;
-        //1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断是否存在
-        if(StrUtil.isBlank(shopJson)) {
-            //3.不存在 直接返回
+        String key = keyPrefix + id;
+        //布隆过滤器判断id一定不存在，不访问redis和数据库
+        if(!idBloomFilter.mightContain(keyPrefix, id)) {
             return null;
         }
-        //4.命中，需要把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(),type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //5.判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())) {
-            //5.1未过期 直接返回店铺信息
-            return r;
+        //0.一级缓存命中且逻辑上没有过期，直接返回；过期了交给redis判断是否已经被别的节点重建
+        LocalEntry local = getLocal(key);
+        if(local != null && !shouldRefresh(local.expireAt, local.delta)) {
+            return type.cast(local.value);
+        }
+        //1.从redis查询缓存，命中时反序列化为对象
+        CacheEntry<R> entry = readLogical(key, getRaw(key), type, local);
+        //2.未命中，加载后写入redis
+        if(entry == null) {
+            return singleFlight(key, type, () -> loadWithMutex(key, id, dbFallback,
+                    bytes -> readLogical(key, bytes, type),
+                    (r, cost) -> this.setWithLogicalExpire(key, r, time, unit, cost)));
+        }
+        //3.判断是否过期
+        if(!shouldRefresh(entry.getExpireAt(), entry.getDelta())) {
+            //3.1未过期 直接返回
+            return entry.getValue();
         }
+        //3.2已过期，异步重建缓存，先返回过期的数据
+        refreshAsync(key, id, dbFallback, time, unit);
+        return entry.getValue();
+    }
 
-        //5.2已过期，重建缓存
-        //6.缓存重建
-        //6.1获取互斥锁
-        String lockKey = LOCK_SHOP_KEY+id;
-        boolean isLock = tryLock(lockKey);
-        //6.2判断是否获取互斥锁成功
-        if(isLock) {
-            //6.3成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTION.submit(() -> {
+    /**
+     * 解析逻辑过期的缓存并放入一级缓存，空值不需要刷新，到期后由redis删除；不存在或者格式无法识别时返回null
+     */
+    private <R> CacheEntry<R> readLogical(String key, byte[] bytes, Class<R> type) {
+        return readLogical(key, bytes, type, null);
+    }
+
+    /**
+     * @param local 已经过期的一级缓存，redis中的头部过期时间和它相同时说明还没有被重建，直接复用，不再解码
+     */
+    private <R> CacheEntry<R> readLogical(String key, byte[] bytes, Class<R> type, LocalEntry local) {
+        if(bytes == null) {
+            return null;
+        }
+        if(local != null && bytes.length > 0 && codec.readExpireAt(bytes) == local.expireAt) {
+            return new CacheEntry<>(type.cast(local.value), local.expireAt, local.delta);
+        }
+        CacheEntry<R> entry = bytes.length == 0 ? new CacheEntry<>(null, Long.MAX_VALUE, 0) : codec.decodeEntry(bytes, type);
+        if(entry != null) {
+            putLocal(key, entry.getValue(), entry.getExpireAt(), entry.getDelta());
+        }
+        return entry;
+    }
+
+    private boolean shouldRefresh(long expireAt, long delta) {
+        long now = System.currentTimeMillis();
+        if(now >= expireAt) {
+            return true;
+        }
+        if(xfetchBeta <= 0 || delta <= 0) {
+            return false;
+        }
+        //ln(random)是负数，离过期越近、重建越慢，提前刷新的概率越大
+        return now - delta * xfetchBeta * Math.log(ThreadLocalRandom.current().nextDouble()) >= expireAt;
+    }
+
+    private <R,ID> void refreshAsync(String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        //1.获取互斥锁，只有一个节点的一个线程负责重建
+        String lockKey = "lock:" + key;
+        if(!tryLock(lockKey)) {
+            return;
+        }
+        //2.提交到重建线程池
+        try {
+            rebuildExecutor.execute(() -> {
                 try {
-                    //查询数据库
-                    R r1 = dbFallback.apply(id);
-                    //写入redis
-                    this.setWithLogicalExpire(key,r1,time,unit);
+                    long start = System.currentTimeMillis();
+                    R r = dbFallback.apply(id);
+                    if(r == null) {
+                        //数据已经被删除
+                        stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
+                        invalidateLocal(key);
+                        return;
+                    }
+                    this.setWithLogicalExpire(key, r, time, unit, System.currentTimeMillis() - start);
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    log.error("重建缓存{}失败", key, e);
                 } finally {
                     //释放锁
                     unlock(lockKey);
                 }
             });
+        } catch (RejectedExecutionException e) {
+            //队列满了，这次不刷新，下一个请求会再尝试
+            unlock(lockKey);
+            log.warn("缓存重建队列已满，跳过{}", key);
+        }
+    }
+
+    /**
+     * 批量查询，结果按ids的顺序返回，不存在的id不出现在结果中
+     * 一级缓存之后用一次MGET查询redis，未命中的id用一次批量查询加载，再通过pipeline一次写回redis。
+     * 写回的值使用逻辑过期格式并同时设置ttl，和 {@link #queryWithLogicalExpire} 共用同一个key时可以互相读取
+     * @param dbBatchFallback 根据一批id查询数据库，返回 id -> 数据
+     */
+    public <R,ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Class<R> type, Function<List<ID>, Map<ID,R>> dbBatchFallback, Long time, TimeUnit unit) {
+        if(ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long now = System.currentTimeMillis();
+        Map<ID, R> found = new HashMap<>(ids.size());
+        //1.布隆过滤器和一级缓存
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            if(found.containsKey(id) || !idBloomFilter.mightContain(keyPrefix, id)) {
+                continue;
+            }
+            LocalEntry local = getLocal(keyPrefix + id);
+            if(local != null && local.expireAt > now) {
+                found.put(id, type.cast(local.value));
+            } else if(!remoteIds.contains(id)) {
+                remoteIds.add(id);
+            }
+        }
+        //2.一次MGET查询redis
+        List<ID> missIds = new ArrayList<>();
+        if(!remoteIds.isEmpty()) {
+            byte[][] rawKeys = remoteIds.stream().map(id -> (keyPrefix + id).getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(rawKeys));
+            for (int i = 0; i < remoteIds.size(); i++) {
+                ID id = remoteIds.get(i);
+                byte[] bytes = values == null ? null : values.get(i);
+                //头部已经能看出过期的值不用解码，直接重新加载
+                long expireAt = bytes == null ? -1 : codec.readExpireAt(bytes);
+                if(expireAt >= 0 && expireAt <= now) {
+                    missIds.add(id);
+                    continue;
+                }
+                CacheEntry<R> entry = readAny(keyPrefix + id, bytes, type);
+                if(entry == null || entry.getExpireAt() <= now) {
+                    missIds.add(id);
+                } else {
+                    found.put(id, entry.getValue());
+                }
+            }
+        }
+        //3.未命中的id一次查询数据库，通过pipeline写回redis
+        if(!missIds.isEmpty()) {
+            Map<ID, R> loaded = dbBatchFallback.apply(missIds);
+            long expireAt = System.currentTimeMillis() + unit.toMillis(time);
+            long nullTtl = TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : missIds) {
+                    byte[] rawKey = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                    R r = loaded.get(id);
+                    if(r == null) {
+                        connection.stringCommands().pSetEx(rawKey, nullTtl, new byte[0]);
+                    } else {
+                        connection.stringCommands().pSetEx(rawKey, unit.toMillis(time), codec.encode(r, expireAt, 0));
+                    }
+                }
+                return null;
+            });
+            for (ID id : missIds) {
+                invalidateLocal(keyPrefix + id);
+                found.put(id, loaded.get(id));
+            }
         }
+        //4.按输入的顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if(r != null) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
 
-        //6.4返回过期的商铺信息
+    /**
+     * 解析缓存并放入一级缓存，空值也算命中；不存在或者格式无法识别时返回null
+     * 同时兼容逻辑过期格式和普通格式，普通格式按永不过期处理，批量查询写入的逻辑过期格式也能被普通查询读取
+     */
+    private <R> CacheEntry<R> readAny(String key, byte[] bytes, Class<R> type) {
+        if(bytes == null || bytes.length == 0) {
+            return readLogical(key, bytes, type);
+        }
+        CacheEntry<R> entry = codec.decodeEntry(bytes, type);
+        if(entry == null) {
+            R r = codec.decode(bytes, type);
+            entry = r == null ? null : new CacheEntry<>(r, Long.MAX_VALUE, 0);
+        }
+        if(entry != null) {
+            putLocal(key, entry.getValue(), entry.getExpireAt(), entry.getDelta());
+        }
+        return entry;
+    }
 
-        //7 返回
-        return r;
+    /**
+     * 查询本地缓存，同时记录一次访问用于热点探测
+     */
+    private LocalEntry getLocal(String key) {
+        boolean hot = hotKeyDetector.record(key);
+        LocalEntry local = localEnabled ? localCache.getIfPresent(key) : null;
+        if(local == null && hot) {
+            local = hotCache.getIfPresent(key);
+        }
+        return local;
+    }
+
+    private void putLocal(String key, Object value, long expireAt, long delta) {
+        LocalEntry entry = new LocalEntry(value, expireAt, delta);
+        if(localEnabled) {
+            localCache.put(key, entry);
+        }
+        if(hotKeyDetector.isHot(key)) {
+            hotCache.put(key, entry);
+        }
+    }
+
+    private void invalidateLocal(String key) {
+        localCache.invalidate(key);
+        hotCache.invalidate(key);
+    }
+
+    private byte[] getRaw(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey));
+    }
+
+    /**
+     * @param ttlMillis 小于等于0表示不过期
+     */
+    private void setRaw(String key, byte[] value, long ttlMillis) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> ttlMillis > 0
+                ? connection.stringCommands().pSetEx(rawKey, ttlMillis, value)
+                : connection.stringCommands().set(rawKey, value));
     }
 
     private boolean tryLock(String key) {
@@ -121,4 +546,19 @@ public class CacheClient {
     private void unlock(String key){
         stringRedisTemplate.delete(key);
     }
+
+    /**
+     * 一级缓存的条目，value为null表示缓存的空值，expireAt为逻辑过期时间，delta为上一次重建的耗时
+     */
+    private static class LocalEntry {
+        final Object value;
+        final long expireAt;
+        final long delta;
+
+        LocalEntry(Object value, long expireAt, long delta) {
+            this.value = value;
+            this.expireAt = expireAt;
+            this.delta = delta;
+        }
+    }
 }
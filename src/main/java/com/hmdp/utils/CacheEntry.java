@@ -0,0 +1,25 @@
+package com.hmdp.utils;
+
+import lombok.Getter;
+
+/**
+ * 解码之后的逻辑过期缓存
+ */
+@Getter
+public class CacheEntry<R> {
+    private final R value;
+    /*
+    逻辑过期时间，毫秒时间戳
+    * */
+    private final long expireAt;
+    /*
+    重建这条缓存耗费的毫秒数
+    * */
+    private final long delta;
+
+    public CacheEntry(R value, long expireAt, long delta) {
+        this.value = value;
+        this.expireAt = expireAt;
+        this.delta = delta;
+    }
+}
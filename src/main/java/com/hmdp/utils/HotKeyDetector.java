@@ -0,0 +1,156 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.HotKey;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+
+/**
+ * 热点key探测
+ * 用滑动窗口的count-min sketch统计最近一段时间内每个key的访问次数：窗口分成若干个子窗口，每个子窗口一个sketch，
+ * 过期的子窗口被清零复用。估计值只会偏大不会偏小，超过阈值的key在接下来的一个窗口内被认为是热点
+ */
+@Component
+public class HotKeyDetector {
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+    private final int width;
+    private final int slots;
+    private final long slotMs;
+    private final long threshold;
+    private final int capacity;
+    private final AtomicLongArray[] sketches;
+    /*
+    每个子窗口当前对应的时间片，时间片变化时清零
+    * */
+    private final AtomicLongArray slotEpochs;
+    /*
+    热点key -> 热点状态的过期时间
+    * */
+    private final Map<String, Long> hotKeys = new ConcurrentHashMap<>();
+
+    public HotKeyDetector(@Value("${hmdp.cache.hot-key.window-ms:10000}") long windowMs,
+                          @Value("${hmdp.cache.hot-key.slots:10}") int slots,
+                          @Value("${hmdp.cache.hot-key.width:4096}") int width,
+                          @Value("${hmdp.cache.hot-key.threshold:1000}") long threshold,
+                          @Value("${hmdp.cache.hot-key.capacity:1000}") int capacity) {
+        //宽度取2的幂，用位运算取模
+        this.width = Integer.highestOneBit(Math.max(16, width - 1)) << 1;
+        this.slots = slots;
+        this.slotMs = Math.max(1, windowMs / slots);
+        this.threshold = threshold;
+        this.capacity = capacity;
+        this.sketches = new AtomicLongArray[slots];
+        this.slotEpochs = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++) {
+            sketches[i] = new AtomicLongArray(DEPTH * this.width);
+        }
+    }
+
+    /**
+     * 记录一次访问
+     * @return 这个key当前是否是热点
+     */
+    public boolean record(String key) {
+        long now = currentTimeMillis();
+        AtomicLongArray sketch = currentSketch(now);
+        int hash = spread(key.hashCode());
+        for (int row = 0; row < DEPTH; row++) {
+            sketch.incrementAndGet(index(row, hash));
+        }
+        Long hotUntil = hotKeys.get(key);
+        if (hotUntil != null && hotUntil > now) {
+            return true;
+        }
+        if (estimate(hash, now) < threshold) {
+            if (hotUntil != null) {
+                hotKeys.remove(key, hotUntil);
+            }
+            return false;
+        }
+        if (hotUntil == null && hotKeys.size() >= capacity) {
+            //热点太多时不再新增，等旧的过期
+            return false;
+        }
+        hotKeys.put(key, now + slotMs * slots);
+        return true;
+    }
+
+    public boolean isHot(String key) {
+        Long hotUntil = hotKeys.get(key);
+        return hotUntil != null && hotUntil > currentTimeMillis();
+    }
+
+    /**
+     * 当前的热点key，按窗口内的访问次数倒序
+     */
+    public List<HotKey> hotKeys() {
+        long now = currentTimeMillis();
+        hotKeys.entrySet().removeIf(e -> e.getValue() <= now);
+        return hotKeys.keySet().stream()
+                .map(key -> new HotKey(key, estimate(spread(key.hashCode()), now)))
+                .sorted((a, b) -> Long.compare(b.getCount(), a.getCount()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 统计使用的时钟，测试中可以覆盖来模拟时间流逝
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private long estimate(int hash, long now) {
+        long epoch = now / slotMs;
+        long total = 0;
+        for (int i = 0; i < slots; i++) {
+            //只统计窗口内的子窗口
+            if (slotEpochs.get(i) <= epoch - slots) {
+                continue;
+            }
+            long min = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                min = Math.min(min, sketches[i].get(index(row, hash)));
+            }
+            total += min;
+        }
+        return total;
+    }
+
+    private AtomicLongArray currentSketch(long now) {
+        long epoch = now / slotMs;
+        int i = (int) (epoch % slots);
+        if (slotEpochs.get(i) != epoch) {
+            synchronized (this) {
+                if (slotEpochs.get(i) != epoch) {
+                    //复用过期的子窗口
+                    AtomicLongArray sketch = sketches[i];
+                    for (int j = 0; j < sketch.length(); j++) {
+                        sketch.set(j, 0);
+                    }
+                    slotEpochs.set(i, epoch);
+                }
+            }
+        }
+        return sketches[i];
+    }
+
+    private int index(int row, int hash) {
+        int h = spread(hash ^ SEEDS[row]);
+        return row * width + (h & (width - 1));
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
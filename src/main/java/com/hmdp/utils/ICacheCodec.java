@@ -0,0 +1,28 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码，由 hmdp.cache.codec 决定：
+ * json（默认）：hutool json，逻辑过期的值包装成 {@link RedisData}，见 {@link JsonCacheCodec}
+ * binary：紧凑的二进制格式，过期时间在固定长度的头部，见 {@link BinaryCacheCodec}
+ * 无法识别的格式（例如切换编码之后redis里的旧数据）解码返回null，按未命中处理
+ */
+public interface ICacheCodec {
+    byte[] encode(Object value);
+
+    /**
+     * 编码逻辑过期的缓存
+     * @param expireAt 逻辑过期时间（毫秒时间戳）
+     * @param delta 重建耗费的毫秒数
+     */
+    byte[] encode(Object value, long expireAt, long delta);
+
+    <R> R decode(byte[] bytes, Class<R> type);
+
+    <R> CacheEntry<R> decodeEntry(byte[] bytes, Class<R> type);
+
+    /**
+     * 不解码对象，只读取逻辑过期时间
+     * @return 逻辑过期时间（毫秒时间戳），普通格式为Long.MAX_VALUE；读取不到时返回-1，需要完整解码
+     */
+    long readExpireAt(byte[] bytes);
+}
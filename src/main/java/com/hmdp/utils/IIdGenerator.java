@@ -0,0 +1,10 @@
+package com.hmdp.utils;
+
+public interface IIdGenerator {
+    /**
+     * 生成全局唯一id
+     * @param keyPrefix 业务前缀，例如order，不同的实现可以按前缀区分序列
+     * @return 全局唯一的long类型id
+     */
+    long nextId(String keyPrefix);
+}
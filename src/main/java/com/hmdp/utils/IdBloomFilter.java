@@ -0,0 +1,207 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RBloomFilter;
+import org.redisson.api.RBucket;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.LongCodec;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 店铺、笔记、用户id的布隆过滤器，按缓存key前缀区分
+ * 过滤器保存在redis中（redisson RBloomFilter），所有节点共享，启动时第一个节点从数据库全量加载，新增数据时追加。
+ * 每次加载都写入一个新的过滤器（bloom:shop:时间戳），加载完成后再把 bloom:shop:current 指向它，查询中的过滤器不会被清空。
+ * 还没有加载完成、加入失败或者redis异常时一律放行，只会退化为没有过滤器，不会误拦截存在的数据
+ */
+@Slf4j
+@Component
+public class IdBloomFilter {
+    private final RedissonClient redissonClient;
+    private final StringRedisTemplate stringRedisTemplate;
+    /*
+    缓存key前缀 -> 过滤器名称前缀
+    * */
+    private final Map<String, String> names = new ConcurrentHashMap<>();
+    /*
+    缓存key前缀 -> 本节点正在使用的过滤器，不在这里的过滤器一律放行
+    * */
+    private final Map<String, String> current = new ConcurrentHashMap<>();
+
+    @Value("${hmdp.bloom.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    @Value("${hmdp.bloom.fpp:0.001}")
+    private double fpp;
+
+    public IdBloomFilter(RedissonClient redissonClient, StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container) {
+        this.redissonClient = redissonClient;
+        this.stringRedisTemplate = stringRedisTemplate;
+        names.put(CACHE_SHOP_KEY, "shop");
+        names.put(CACHE_BLOG_KEY, "blog");
+        names.put(CACHE_USER_KEY, "user");
+        //其他节点关闭或者重建了过滤器，重新读取当前的过滤器
+        container.addMessageListener((message, pattern) ->
+                refresh(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(BLOOM_FILTER_CHANGED_CHANNEL));
+    }
+
+    /**
+     * 判断id是否可能存在，返回false时一定不存在
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        String name = current.get(keyPrefix);
+        if (!enabled || id == null || name == null) {
+            return true;
+        }
+        try {
+            return filter(name).contains(Long.valueOf(id.toString()));
+        } catch (Exception e) {
+            log.warn("查询布隆过滤器{}失败", keyPrefix, e);
+            return true;
+        }
+    }
+
+    /**
+     * 新增数据后调用
+     */
+    public void add(String keyPrefix, Long id) {
+        if (!enabled || id == null || !names.containsKey(keyPrefix)) {
+            return;
+        }
+        try {
+            //每次从redis读取当前的过滤器，重建切换之后不会加到旧的过滤器里
+            String name = pointer(keyPrefix).get();
+            if (name != null) {
+                filter(name).add(id);
+            }
+        } catch (Exception e) {
+            //没有加进去的id会被误拦截，重建过滤器之前所有节点都只能放行
+            log.error("id {}加入布隆过滤器{}失败，关闭该过滤器", id, keyPrefix, e);
+            disable(keyPrefix);
+        }
+    }
+
+    /**
+     * @return 过滤器还没有加载或者已经被关闭，需要重新加载
+     */
+    public boolean needsLoad(String keyPrefix) {
+        return enabled && !current.containsKey(keyPrefix);
+    }
+
+    /**
+     * 从数据库全量加载，已经加载过并且完整的直接使用
+     * @param count 数据库中现有的数量
+     * @param nextIds 按id升序返回大于lastId的下一批id
+     */
+    public void load(String keyPrefix, long count, Function<Long, List<Long>> nextIds) {
+        if (!enabled) {
+            return;
+        }
+        String base = baseName(keyPrefix);
+        RBucket<String> pointer = pointer(keyPrefix);
+        RBucket<String> stale = redissonClient.getBucket(base + ":stale", StringCodec.INSTANCE);
+        RLock lock = redissonClient.getLock(base + ":lock");
+        //其他节点正在加载时等它加载完
+        lock.lock();
+        try {
+            String old = pointer.get();
+            if (old != null && !stale.isExists()) {
+                current.put(keyPrefix, old);
+                return;
+            }
+            //1.还没有加载过，或者加入失败过滤器不完整，写入一个新的过滤器
+            String name = base + ":" + System.currentTimeMillis();
+            RBloomFilter<Long> filter = filter(name);
+            filter.tryInit(Math.max(expectedInsertions, count * 2), fpp);
+            long lastId = addAll(filter, 0, nextIds);
+            //2.切换到新的过滤器，切换前插入、已经加到旧过滤器的id再补一遍
+            pointer.set(name);
+            stale.delete();
+            addAll(filter, lastId, nextIds);
+            if (old != null) {
+                filter(old).delete();
+            }
+            current.put(keyPrefix, name);
+            stringRedisTemplate.convertAndSend(BLOOM_FILTER_CHANGED_CHANNEL, keyPrefix);
+            log.info("布隆过滤器{}加载完成，共{}个id", name, filter.count());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 按id升序加入大于lastId的所有id
+     * @return 最后一个id
+     */
+    private static long addAll(RBloomFilter<Long> filter, long lastId, Function<Long, List<Long>> nextIds) {
+        List<Long> ids;
+        while (!(ids = nextIds.apply(lastId)).isEmpty()) {
+            for (Long id : ids) {
+                filter.add(id);
+            }
+            lastId = ids.get(ids.size() - 1);
+        }
+        return lastId;
+    }
+
+    /**
+     * 标记过滤器不完整，通知所有节点（包括自己）停止使用，等待重新加载
+     */
+    private void disable(String keyPrefix) {
+        current.remove(keyPrefix);
+        try {
+            redissonClient.getBucket(baseName(keyPrefix) + ":stale", StringCodec.INSTANCE).set("1");
+            stringRedisTemplate.convertAndSend(BLOOM_FILTER_CHANGED_CHANNEL, keyPrefix);
+        } catch (Exception e) {
+            log.error("通知其他节点关闭布隆过滤器{}失败", keyPrefix, e);
+        }
+    }
+
+    private void refresh(String keyPrefix) {
+        if (!names.containsKey(keyPrefix)) {
+            return;
+        }
+        String name = pointer(keyPrefix).get();
+        if (name == null || redissonClient.getBucket(baseName(keyPrefix) + ":stale").isExists()) {
+            current.remove(keyPrefix);
+        } else {
+            current.put(keyPrefix, name);
+        }
+    }
+
+    private RBloomFilter<Long> filter(String name) {
+        return redissonClient.getBloomFilter(name, LongCodec.INSTANCE);
+    }
+
+    /*
+    指向当前完整的过滤器
+    * */
+    private RBucket<String> pointer(String keyPrefix) {
+        return redissonClient.getBucket(baseName(keyPrefix) + ":current", StringCodec.INSTANCE);
+    }
+
+    private String baseName(String keyPrefix) {
+        String name = names.get(keyPrefix);
+        if (name == null) {
+            throw new IllegalArgumentException("没有这个布隆过滤器：" + keyPrefix);
+        }
+        return BLOOM_FILTER_KEY + name;
+    }
+}
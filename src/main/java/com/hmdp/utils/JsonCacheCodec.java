@@ -0,0 +1,65 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * hutool json编码，和之前直接写json的缓存格式兼容
+ */
+@Component
+@ConditionalOnProperty(name = "hmdp.cache.codec", havingValue = "json", matchIfMissing = true)
+public class JsonCacheCodec implements ICacheCodec {
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] encode(Object value, long expireAt, long delta) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireAt), ZoneId.systemDefault()));
+        redisData.setDelta(delta);
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        try {
+            return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * 过期时间在json中间，读取它和完整解析的开销差不多，由调用方完整解码
+     */
+    @Override
+    public long readExpireAt(byte[] bytes) {
+        return -1;
+    }
+
+    @Override
+    public <R> CacheEntry<R> decodeEntry(byte[] bytes, Class<R> type) {
+        try {
+            //先解析成RedisData，再把data解析成目标类型
+            RedisData redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+            if (redisData.getExpireTime() == null || !(redisData.getData() instanceof JSONObject)) {
+                return null;
+            }
+            R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+            long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            return new CacheEntry<>(r, expireAt, redisData.getDelta() == null ? 0 : redisData.getDelta());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
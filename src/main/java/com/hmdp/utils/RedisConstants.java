@@ -11,12 +11,41 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final String CACHE_SHOP_TYPE_KEY = "cache:shop-type";
+    public static final String CACHE_SHOP_TYPE_VERSION_KEY = "cache:shop-type:version";
+    public static final String SHOP_TYPE_CHANGED_CHANNEL = "cache:shop-type:changed";
+
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String BLOOM_FILTER_KEY = "bloom:";
+    public static final String BLOOM_FILTER_CHANGED_CHANNEL = "bloom:changed";
+
+    public static final String SHOP_GEO_CHANGED_CHANNEL = "shop:geo:changed";
+    public static final String SHOP_NAME_CHANGED_CHANNEL = "shop:name:changed";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CDC_POSITION_KEY = "cdc:binlog:";
+    public static final String CDC_REPAIR_KEY = "cdc:repair";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_SHOP_GEO_RECONCILE_KEY = "lock:shop-geo:reconcile";
+
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final Long ID_WORKER_TTL = 60L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_STOCK_CHANNEL = "seckill:stock:changed";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String LOCK_SECKILL_PREHEAT_KEY = "lock:seckill:preheat";
+    public static final String STREAM_ORDERS_KEY = "stream.orders";
+    public static final String STREAM_ORDERS_GROUP = "g1";
+    public static final String STREAM_ORDERS_DLQ_KEY = "stream.orders.dlq";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_SCROLL_KEY = ":scroll:";
     public static final String USER_SIGN_KEY = "sign:";
 }
@@ -8,4 +8,8 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    /*
+    重建这条缓存耗费的毫秒数，用于提前过期（XFetch）
+    * */
+    private Long delta;
 }
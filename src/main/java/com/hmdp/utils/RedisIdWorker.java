@@ -1,41 +1,21 @@
 package com.hmdp.utils;
 
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
-
+/**
+ * 全局id生成器，具体的生成策略由 hmdp.id.mode 决定：
+ * segment（默认）：redis号段模式，见 {@link SegmentIdGenerator}
+ * snowflake：进程内雪花算法，只在启动时向redis租用workerId，见 {@link SnowflakeIdGenerator}
+ */
 @Component
 public class RedisIdWorker {
-    /*
-    开始时间戳
-    * */
-    private static final long BEGIN_TIMESTAMP = 1640995200L;
-    /*位数
-    * */
-    private static final int COUNT_BITS= 32;
-    private StringRedisTemplate stringRedisTemplate;
+    private final IIdGenerator idGenerator;
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
-        this.stringRedisTemplate = stringRedisTemplate;
+    public RedisIdWorker(IIdGenerator idGenerator) {
+        this.idGenerator = idGenerator;
     }
 
     public long nextId(String keyPrefix) {
-
-
-        //1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timestamp = nowSecond - BEGIN_TIMESTAMP;
-
-        //2.生成序列号
-        //2.1获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        //2.2自增长
-        Long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
-        //3.拼接返回
-        return timestamp << COUNT_BITS | count;
+        return idGenerator.nextId(keyPrefix);
     }
 }
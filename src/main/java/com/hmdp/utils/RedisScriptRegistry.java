@@ -0,0 +1,160 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * lua脚本注册中心
+ * 所有脚本在注册时用 SCRIPT LOAD 预加载，执行时只发送 EVALSHA，
+ * redis重启或主从切换后返回 NOSCRIPT 时重新加载一次再执行。
+ * 每个脚本导出 redis.script{script} 耗时、redis.script.errors{script} 和 redis.script.reloads{script} 指标
+ */
+@Slf4j
+@Component
+public class RedisScriptRegistry {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, RedisScript<?>> scriptsByName = new ConcurrentHashMap<>();
+    private final Map<String, ScriptMeters> scripts = new ConcurrentHashMap<>();
+
+    public RedisScriptRegistry(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * 注册classpath下的脚本并预加载，同一个脚本重复注册时直接返回已注册的脚本
+     * @param name 脚本名称，对应 classpath 下的 name.lua
+     * @param resultType 返回值类型，Long、Boolean、List 或 String
+     */
+    @SuppressWarnings("unchecked")
+    public <T> RedisScript<T> register(String name, Class<T> resultType) {
+        return (RedisScript<T>) scriptsByName.computeIfAbsent(name, n -> {
+            DefaultRedisScript<T> script = new DefaultRedisScript<>();
+            script.setLocation(new ClassPathResource(n + ".lua"));
+            script.setResultType(resultType);
+            scripts.put(script.getSha1(), new ScriptMeters(n));
+            try {
+                load(script);
+            } catch (Exception e) {
+                //redis暂时不可用不影响启动，第一次执行时收到NOSCRIPT会再加载
+                log.warn("预加载脚本{}失败", n, e);
+            }
+            return script;
+        });
+    }
+
+    public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+        ScriptMeters meters = scripts.get(script.getSha1());
+        if (meters == null) {
+            throw new IllegalArgumentException("脚本没有注册：" + script.getSha1());
+        }
+        byte[][] keysAndArgs = keysAndArgs(keys, args);
+        long start = System.nanoTime();
+        try {
+            try {
+                return evalSha(script, keys.size(), keysAndArgs);
+            } catch (Exception e) {
+                if (!isNoScript(e)) {
+                    throw e;
+                }
+                //redis里没有这个脚本（重启、主从切换、SCRIPT FLUSH），重新加载后再执行一次
+                log.warn("脚本{}不存在，重新加载", meters.name);
+                meters.reloads.increment();
+                load(script);
+                return evalSha(script, keys.size(), keysAndArgs);
+            }
+        } catch (RuntimeException e) {
+            meters.errors.increment();
+            throw e;
+        } finally {
+            meters.timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void load(RedisScript<?> script) {
+        byte[] body = script.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.scriptingCommands().scriptLoad(body));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T evalSha(RedisScript<T> script, int numKeys, byte[][] keysAndArgs) {
+        ReturnType returnType = ReturnType.fromJavaType(script.getResultType());
+        Object result = stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.scriptingCommands().evalSha(script.getSha1(), returnType, numKeys, keysAndArgs));
+        return (T) deserialize(result);
+    }
+
+    private static byte[][] keysAndArgs(List<String> keys, Object[] args) {
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        int i = 0;
+        for (String key : keys) {
+            keysAndArgs[i++] = key.getBytes(StandardCharsets.UTF_8);
+        }
+        for (Object arg : args) {
+            keysAndArgs[i++] = String.valueOf(arg).getBytes(StandardCharsets.UTF_8);
+        }
+        return keysAndArgs;
+    }
+
+    /**
+     * 和StringRedisTemplate执行脚本的结果保持一致：字符串反序列化为String，多层列表递归处理
+     */
+    private static Object deserialize(Object result) {
+        if (result instanceof byte[]) {
+            return new String((byte[]) result, StandardCharsets.UTF_8);
+        }
+        if (result instanceof List) {
+            List<?> list = (List<?>) result;
+            List<Object> values = new ArrayList<>(list.size());
+            for (Object o : list) {
+                values.add(deserialize(o));
+            }
+            return values;
+        }
+        return result;
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        while (e != null) {
+            if (e.getMessage() != null && e.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+            e = e.getCause();
+        }
+        return false;
+    }
+
+    private class ScriptMeters {
+        final String name;
+        final Timer timer;
+        final Counter errors;
+        final Counter reloads;
+
+        ScriptMeters(String name) {
+            this.name = name;
+            this.timer = Timer.builder("redis.script").tag("script", name)
+                    .description("lua脚本执行耗时").register(meterRegistry);
+            this.errors = Counter.builder("redis.script.errors").tag("script", name)
+                    .description("lua脚本执行失败次数").register(meterRegistry);
+            this.reloads = Counter.builder("redis.script.reloads").tag("script", name)
+                    .description("收到NOSCRIPT后重新加载的次数").register(meterRegistry);
+        }
+    }
+}
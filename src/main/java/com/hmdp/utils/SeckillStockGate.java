@@ -0,0 +1,167 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+
+/**
+ * 秒杀库存的本地闸门
+ * lua脚本返回库存不足后，在本节点记录售罄标记，之后的请求直接在进程内拒绝，不再访问redis
+ * 补充库存时通过redis发布订阅通知所有节点清除标记
+ * 同时在本地缓存每张券的秒杀时间窗口（预热时写入 seckill:window:voucherId），窗口外的请求直接拒绝
+ */
+@Slf4j
+@Component
+public class SeckillStockGate {
+    public static final int NOT_STARTED = -1;
+    public static final int OPEN = 0;
+    public static final int ENDED = 1;
+    private final StringRedisTemplate stringRedisTemplate;
+    /*
+    售罄的voucherId，写入后soldOutTtlMs过期，发布订阅的消息丢了也最多拒绝这么久
+    voucherId来自请求参数，数量有上限，避免被随意的id撑满内存
+    * */
+    private final Cache<Long, Boolean> soldOut;
+    /*
+    voucherId -> 最近一次补充库存的时间，补充之前发出的请求不能再把券标记为售罄
+    比这个时间更早的请求早已结束，同样只保留soldOutTtlMs
+    * */
+    private final Cache<Long, Long> replenishedAt;
+    /*
+    voucherId -> 秒杀时间窗口，写入后windowTtlMs过期，发布订阅的消息丢了也能重新加载
+    还没有预热或者不存在的券缓存 ABSENT，只保留windowMissTtlMs，随意的voucherId也不会每次都访问redis，数量受capacity限制
+    * */
+    private final Cache<Long, Window> windows;
+
+    private final long soldOutTtlMs;
+
+    public SeckillStockGate(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container,
+                            @Value("${hmdp.seckill.sold-out-ttl-ms:5000}") long soldOutTtlMs,
+                            @Value("${hmdp.seckill.local-capacity:10000}") long capacity,
+                            @Value("${hmdp.seckill.window-ttl-ms:60000}") long windowTtlMs,
+                            @Value("${hmdp.seckill.window-miss-ttl-ms:1000}") long windowMissTtlMs) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.soldOutTtlMs = soldOutTtlMs;
+        this.soldOut = Caffeine.newBuilder()
+                .maximumSize(capacity)
+                .expireAfterWrite(soldOutTtlMs, TimeUnit.MILLISECONDS)
+                .build();
+        this.replenishedAt = Caffeine.newBuilder()
+                .maximumSize(capacity)
+                .expireAfterWrite(soldOutTtlMs, TimeUnit.MILLISECONDS)
+                .build();
+        this.windows = Caffeine.newBuilder()
+                .maximumSize(capacity)
+                .expireAfter(new Expiry<Long, Window>() {
+                    @Override
+                    public long expireAfterCreate(Long key, Window window, long currentTime) {
+                        return TimeUnit.MILLISECONDS.toNanos(window == ABSENT ? windowMissTtlMs : windowTtlMs);
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(Long key, Window window, long currentTime, long currentDuration) {
+                        return expireAfterCreate(key, window, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(Long key, Window window, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
+        container.addMessageListener((message, pattern) -> {
+            Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+            log.debug("优惠券{}补充了库存，清除售罄标记", voucherId);
+            reset(voucherId);
+        }, new ChannelTopic(SECKILL_STOCK_CHANNEL));
+    }
+
+    /**
+     * 判断本节点是否已经知道这张券卖完了
+     */
+    public boolean isSoldOut(Long voucherId) {
+        //标记过期后由caffeine清除，放一个请求去redis确认
+        return soldOut.getIfPresent(voucherId) != null;
+    }
+
+    /**
+     * 判断当前是否在秒杀时间窗口内
+     * @return NOT_STARTED：尚未开始；OPEN：进行中；ENDED：已经结束。还没有预热的券按进行中处理，交给lua脚本判断库存
+     */
+    public int windowState(Long voucherId) {
+        Window window = windows.get(voucherId, this::loadWindow);
+        if (window == ABSENT) {
+            return OPEN;
+        }
+        long now = System.currentTimeMillis();
+        if (now < window.begin) {
+            return NOT_STARTED;
+        }
+        return now > window.end ? ENDED : OPEN;
+    }
+
+    private Window loadWindow(Long voucherId) {
+        List<Object> values = stringRedisTemplate.opsForHash()
+                .multiGet(SECKILL_WINDOW_KEY + voucherId, Arrays.asList("begin", "end"));
+        if (values.get(0) == null || values.get(1) == null) {
+            return ABSENT;
+        }
+        return new Window(Long.parseLong(values.get(0).toString()), Long.parseLong(values.get(1).toString()));
+    }
+
+    /**
+     * lua脚本返回库存不足时调用
+     * @param requestAt 请求开始的时间，早于最近一次补充库存的请求不会标记售罄
+     */
+    public void markSoldOut(Long voucherId, long requestAt) {
+        Long replenished = replenishedAt.getIfPresent(voucherId);
+        if (replenished != null && requestAt <= replenished) {
+            return;
+        }
+        soldOut.put(voucherId, Boolean.TRUE);
+    }
+
+    /**
+     * 补充库存或预热后调用，通知所有节点（包括自己）清除售罄标记和缓存的时间窗口
+     */
+    public void publishReplenished(Long voucherId) {
+        reset(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_STOCK_CHANNEL, voucherId.toString());
+    }
+
+    private void reset(Long voucherId) {
+        replenishedAt.put(voucherId, System.currentTimeMillis());
+        soldOut.invalidate(voucherId);
+        //预热或修改时间后窗口可能变了，下次请求重新加载
+        windows.invalidate(voucherId);
+    }
+
+    /*
+    还没有预热或者不存在的券
+    * */
+    private static final Window ABSENT = new Window(-1, -1);
+
+    private static class Window {
+        final long begin;
+        final long end;
+
+        Window(long begin, long end) {
+            this.begin = begin;
+            this.end = end;
+        }
+    }
+}
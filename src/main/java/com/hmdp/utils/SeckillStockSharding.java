@@ -0,0 +1,169 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存分片
+ * 分片数大于1时，一张券的库存拆成N个子key seckill:stock:{voucherId:i}，订单集合同样拆成 seckill:order:{voucherId:i}，
+ * 不同分片的hash tag不同，在redis集群中会落到不同的节点上。
+ * 用户按id哈希到固定的分片，一人一单只需要检查自己分片的订单集合；自己的分片卖完后向兄弟分片借库存。
+ */
+@Slf4j
+@Component
+public class SeckillStockSharding {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisScriptRegistry redisScriptRegistry;
+    private final RedisScript<Long> bucketScript;
+    private final RedisScript<Long> takeScript;
+
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int shards;
+
+    public SeckillStockSharding(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry redisScriptRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScriptRegistry = redisScriptRegistry;
+        this.bucketScript = redisScriptRegistry.register("seckill_bucket", Long.class);
+        this.takeScript = redisScriptRegistry.register("stock_take", Long.class);
+    }
+
+    public boolean isEnabled() {
+        return shards > 1;
+    }
+
+    /**
+     * 把库存写入redis，开启分片时平均分到每个分片上，余数分给前几个分片
+     */
+    public void initStock(Long voucherId, int stock) {
+        if (!isEnabled()) {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            return;
+        }
+        for (int i = 0; i < shards; i++) {
+            int bucketStock = stock / shards + (i < stock % shards ? 1 : 0);
+            stringRedisTemplate.opsForValue().set(stockKey(voucherId, i), String.valueOf(bucketStock));
+        }
+    }
+
+    /**
+     * 库存是否已经写入redis
+     */
+    public boolean hasStock(Long voucherId) {
+        String key = isEnabled() ? stockKey(voucherId, 0) : SECKILL_STOCK_KEY + voucherId;
+        return Boolean.TRUE.equals(stringRedisTemplate.hasKey(key));
+    }
+
+    /**
+     * 重置订单集合，只保留已经下过单的用户
+     */
+    public void resetBuyers(Long voucherId, Collection<Long> userIds) {
+        if (!isEnabled()) {
+            String key = SECKILL_ORDER_KEY + voucherId;
+            stringRedisTemplate.delete(key);
+            if (!userIds.isEmpty()) {
+                stringRedisTemplate.opsForSet().add(key, userIds.stream().map(String::valueOf).toArray(String[]::new));
+            }
+            return;
+        }
+        Map<Integer, List<String>> buyersOfBucket = userIds.stream()
+                .collect(Collectors.groupingBy(userId -> Math.floorMod(userId.hashCode(), shards),
+                        Collectors.mapping(String::valueOf, Collectors.toList())));
+        for (int i = 0; i < shards; i++) {
+            String key = orderKey(voucherId, i);
+            stringRedisTemplate.delete(key);
+            List<String> buyers = buyersOfBucket.get(i);
+            if (buyers != null) {
+                stringRedisTemplate.opsForSet().add(key, buyers.toArray(new String[0]));
+            }
+        }
+    }
+
+    /**
+     * 删除这张券在redis中的库存和订单集合
+     */
+    public void clear(Long voucherId) {
+        if (!isEnabled()) {
+            stringRedisTemplate.delete(Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId));
+            return;
+        }
+        for (int i = 0; i < shards; i++) {
+            //不同分片在集群中属于不同的slot，逐个删除
+            stringRedisTemplate.delete(stockKey(voucherId, i));
+            stringRedisTemplate.delete(orderKey(voucherId, i));
+        }
+    }
+
+    /**
+     * 分片模式下的秒杀
+     * @return 0：下单成功，订单消息已经写入stream.orders；1：库存不足；2：重复下单
+     */
+    public int seckill(Long voucherId, Long userId, long orderId) {
+        int home = Math.floorMod(userId.hashCode(), shards);
+        List<String> homeKeys = Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home));
+        //1.在自己的分片里检查一人一单并扣减库存
+        int stockBucket = home;
+        int r = redisScriptRegistry.execute(bucketScript, homeKeys, userId, "0").intValue();
+        if (r == 1) {
+            //2.自己的分片卖完了，依次向兄弟分片借一个库存
+            stockBucket = takeFromSiblings(voucherId, home);
+            if (stockBucket < 0) {
+                return 1;
+            }
+            //3.借到之后回到自己的分片记录下单用户
+            r = redisScriptRegistry.execute(bucketScript, homeKeys, userId, "1").intValue();
+            if (r != 0) {
+                //同一个用户的并发请求已经先下单了，把借来的库存还回去
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, stockBucket));
+                return r;
+            }
+        }
+        if (r != 0) {
+            return r;
+        }
+        //4.分片和消息队列不在同一个slot，不能在同一个脚本里发消息，这里单独XADD，失败时回滚库存和下单记录
+        try {
+            Map<String, String> order = new HashMap<>(4);
+            order.put("userId", userId.toString());
+            order.put("voucherId", voucherId.toString());
+            order.put("id", String.valueOf(orderId));
+            stringRedisTemplate.opsForStream().add(STREAM_ORDERS_KEY, order);
+        } catch (RuntimeException e) {
+            stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), userId.toString());
+            stringRedisTemplate.opsForValue().increment(stockKey(voucherId, stockBucket));
+            throw e;
+        }
+        return 0;
+    }
+
+    private int takeFromSiblings(Long voucherId, int home) {
+        for (int k = 1; k < shards; k++) {
+            int bucket = (home + k) % shards;
+            Long taken = redisScriptRegistry.execute(takeScript, Collections.singletonList(stockKey(voucherId, bucket)));
+            if (taken != null && taken == 0) {
+                return bucket;
+            }
+        }
+        return -1;
+    }
+
+    private static String stockKey(Long voucherId, int bucket) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    private static String orderKey(Long voucherId, int bucket) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+}
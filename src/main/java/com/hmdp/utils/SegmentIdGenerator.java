@@ -0,0 +1,158 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 号段模式：时间戳31位 + 每天的序列号32位，序列号从redis按号段预留，在本地分配
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.id.mode", havingValue = "segment", matchIfMissing = true)
+public class SegmentIdGenerator implements IIdGenerator {
+    /*
+    开始时间戳
+    * */
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+    /*位数
+    * */
+    private static final int COUNT_BITS= 32;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    /*
+    号段用完之前在这个线程里异步预取下一个号段
+    * */
+    private static final ExecutorService SEGMENT_LOADER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "id-segment-loader");
+        t.setDaemon(true);
+        return t;
+    });
+    private StringRedisTemplate stringRedisTemplate;
+    private final ConcurrentHashMap<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    /*
+    每次INCRBY预留的号段长度
+    * */
+    @Value("${hmdp.id.step:1000}")
+    private long step;
+    /*
+    号段剩余比例低于这个值时开始预取下一个号段
+    * */
+    @Value("${hmdp.id.low-water-ratio:0.2}")
+    private double lowWaterRatio;
+
+    public SegmentIdGenerator(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @Override
+    public long nextId(String keyPrefix) {
+        //1.生成时间戳
+        LocalDateTime now = LocalDateTime.now();
+        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+
+        //2.生成序列号，从本地号段中分配，号段按天划分，key还是 icr:<prefix>:<yyyy:MM:dd>
+        long count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(now.toLocalDate());
+        //3.拼接返回
+        return timestamp << COUNT_BITS | count;
+    }
+
+    /*
+    一个号段：[cursor, max]，属于某一天
+    * */
+    private static class Segment {
+        final LocalDate date;
+        final AtomicLong cursor;
+        final long max;
+
+        Segment(LocalDate date, long min, long max) {
+            this.date = date;
+            this.cursor = new AtomicLong(min);
+            this.max = max;
+        }
+    }
+
+    /*
+    双号段缓冲：当前号段用到低水位时异步加载下一个号段，当前号段用完直接切换
+    * */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private Future<Segment> next;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(LocalDate date) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.date.equals(date)) {
+                    long id = segment.cursor.getAndIncrement();
+                    if (id <= segment.max) {
+                        //只有恰好拿到低水位这个号的线程会触发预取
+                        if (segment.max - id == lowWater()) {
+                            prefetch(segment.date);
+                        }
+                        return id;
+                    }
+                }
+                switchSegment(segment, date);
+            }
+        }
+
+        private long lowWater() {
+            return (long) (step * lowWaterRatio);
+        }
+
+        private synchronized void prefetch(LocalDate date) {
+            if (next == null) {
+                next = SEGMENT_LOADER.submit(() -> load(date));
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, LocalDate date) {
+            if (current != exhausted) {
+                //其他线程已经切换过了
+                return;
+            }
+            Segment segment = null;
+            if (next != null) {
+                try {
+                    segment = next.get();
+                } catch (Exception e) {
+                    log.error("预取号段失败，同步加载", e);
+                } finally {
+                    next = null;
+                }
+            }
+            //跨天或者预取失败时同步加载
+            if (segment == null || !segment.date.equals(date)) {
+                segment = load(date);
+            }
+            current = segment;
+        }
+
+        private Segment load(LocalDate date) {
+            //INCRBY icr:<prefix>:<yyyy:MM:dd> step 一次预留step个号
+            Long max = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date.format(DATE_FORMATTER), step);
+            if (max == null) {
+                throw new IllegalStateException("获取号段失败：" + keyPrefix);
+            }
+            return new Segment(date, max - step + 1, max);
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_CHANGED_CHANNEL;
+
+/**
+ * 进程内的店铺坐标索引
+ * 每个店铺类型一张经纬度网格，格子里保存店铺坐标和筛选需要的均价、评分、营业时间（{@link ShopPoint}），筛选时不需要查询店铺详情。
+ * 附近查询从中心格子开始一圈一圈向外扩展，
+ * 外圈的最近距离超过半径或者已经找到足够多的店铺时停止；按（距离，店铺id）排序，上一页最后一个店铺作为游标继续查询时，
+ * 整圈都在游标距离以内的格子直接跳过。
+ * 启动时全量加载，店铺变更在事务提交后通过redis发布订阅同步到所有节点，加载完成之前 {@link #isReady()} 返回false，由调用方回退到redis GEO。
+ * 发布订阅断线期间的消息会丢失，由调用方定时重新全量加载兜底
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex {
+    /*
+    和redis GEO使用相同的地球半径，距离结果和GEOSEARCH一致
+    * */
+    private static final double EARTH_RADIUS = 6372797.560856;
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+    private static final Comparator<Hit> ORDER = Comparator.comparingDouble(Hit::getDistance).thenComparingLong(Hit::getShopId);
+    private final StringRedisTemplate stringRedisTemplate;
+    /*
+    店铺id -> 索引中的店铺，全量加载完成后整体替换
+    * */
+    private volatile Map<Long, ShopPoint> entries = new ConcurrentHashMap<>();
+    /*
+    店铺类型 -> 格子 -> 格子里的店铺，全量加载完成后整体替换
+    * */
+    private volatile Map<Long, Map<Long, Set<ShopPoint>>> grids = new ConcurrentHashMap<>();
+    /*
+    全量加载期间收到的变更，替换之后按顺序重放，不为null表示正在加载
+    * */
+    private List<Shop> replay;
+    private final boolean enabled;
+    private final double cellDegrees;
+    private volatile boolean ready;
+
+    public ShopGeoIndex(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container,
+                        @Value("${hmdp.geo.index.enabled:false}") boolean enabled,
+                        @Value("${hmdp.geo.index.cell-degrees:0.01}") double cellDegrees) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.enabled = enabled;
+        this.cellDegrees = cellDegrees;
+        if (enabled) {
+            container.addMessageListener((message, pattern) ->
+                    apply(JSONUtil.toBean(new String(message.getBody(), StandardCharsets.UTF_8), Shop.class)),
+                    new ChannelTopic(SHOP_GEO_CHANGED_CHANNEL));
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isReady() {
+        return enabled && ready;
+    }
+
+    /**
+     * 全量加载，启动时和定时重新加载都调用这里
+     * 在新的索引里加载完成后整体替换，查询不受影响；加载期间收到的变更在替换之后重放，不会被旧的数据库快照覆盖
+     * @param nextBatch 按id升序查询大于lastId的下一批店铺，至少包含id、typeId、x、y、avgPrice、score、openHours，返回空列表表示结束
+     */
+    public void load(Function<Long, List<Shop>> nextBatch) {
+        if (!enabled) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        synchronized (this) {
+            if (replay != null) {
+                log.info("店铺坐标索引正在加载，跳过");
+                return;
+            }
+            replay = new ArrayList<>();
+        }
+        Map<Long, ShopPoint> loadedEntries = new ConcurrentHashMap<>();
+        Map<Long, Map<Long, Set<ShopPoint>>> loadedGrids = new ConcurrentHashMap<>();
+        try {
+            Long lastId = 0L;
+            List<Shop> shops;
+            while (!(shops = nextBatch.apply(lastId)).isEmpty()) {
+                for (Shop shop : shops) {
+                    apply(shop, loadedEntries, loadedGrids);
+                }
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            synchronized (this) {
+                for (Shop shop : replay) {
+                    apply(shop, loadedEntries, loadedGrids);
+                }
+                entries = loadedEntries;
+                grids = loadedGrids;
+            }
+        } finally {
+            synchronized (this) {
+                replay = null;
+            }
+        }
+        ready = true;
+        log.info("店铺坐标索引加载完成，店铺{}个，耗时{}ms", loadedEntries.size(), System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 店铺新增或修改之后调用，通知所有节点更新索引
+     */
+    public void update(Shop shop) {
+        if (enabled && shop != null) {
+            stringRedisTemplate.convertAndSend(SHOP_GEO_CHANGED_CHANNEL, JSONUtil.toJsonStr(shop));
+        }
+    }
+
+    /**
+     * 店铺删除之后调用，通知所有节点更新索引
+     */
+    public void remove(Long shopId) {
+        if (enabled) {
+            stringRedisTemplate.convertAndSend(SHOP_GEO_CHANGED_CHANNEL, JSONUtil.toJsonStr(new Shop().setId(shopId)));
+        }
+    }
+
+    /**
+     * 查询距离最近的店铺，从头开始
+     */
+    public List<Hit> nearby(Long typeId, double x, double y, double radius, int limit) {
+        return nearby(typeId, x, y, radius, -1, 0, limit, null);
+    }
+
+    public List<Hit> nearby(Long typeId, double x, double y, double radius, double afterDistance, long afterId, int limit) {
+        return nearby(typeId, x, y, radius, afterDistance, afterId, limit, null);
+    }
+
+    /**
+     * 查询半径内满足条件的所有店铺，不排序
+     * @param filter 筛选条件，为null时不筛选
+     */
+    public List<Hit> within(Long typeId, double x, double y, double radius, Predicate<ShopPoint> filter) {
+        List<Hit> hits = new ArrayList<>();
+        Map<Long, Set<ShopPoint>> grid = grids.get(typeId);
+        if (grid == null) {
+            return hits;
+        }
+        //半径覆盖的经纬度范围内的格子，经度方向按离赤道最远的纬度换算，那里同样的距离跨过的经度最多
+        double dy = radius / METERS_PER_DEGREE;
+        double dx = dy / Math.max(Math.cos(Math.toRadians(Math.min(90, Math.abs(y) + dy))), 0.01);
+        for (long cx = cell(x - dx); cx <= cell(x + dx); cx++) {
+            for (long cy = cell(y - dy); cy <= cell(y + dy); cy++) {
+                Set<ShopPoint> cell = grid.get(cellKey(cx, cy));
+                if (cell == null) {
+                    continue;
+                }
+                for (ShopPoint p : cell) {
+                    double d = distance(x, y, p.x, p.y);
+                    if (d <= radius && (filter == null || filter.test(p))) {
+                        hits.add(new Hit(p.shopId, d, p.score));
+                    }
+                }
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * 查询半径内排在游标之后的最近的limit个店铺，按（距离，店铺id）升序
+     * @param afterDistance 上一页最后一个店铺的距离，从头查询时传负数
+     * @param afterId 上一页最后一个店铺的id
+     * @param filter 筛选条件，为null时不筛选
+     */
+    public List<Hit> nearby(Long typeId, double x, double y, double radius, double afterDistance, long afterId, int limit,
+                            Predicate<ShopPoint> filter) {
+        Map<Long, Set<ShopPoint>> grid = grids.get(typeId);
+        if (grid == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        //1.格子纬度方向的边长，经度方向的边长随纬度变短，不会超过它
+        double cellMax = cellDegrees * METERS_PER_DEGREE;
+        long cx = cell(x);
+        long cy = cell(y);
+        //2.第r圈里的点和中心的经纬度都相差不超过r+1个格子，沿经线再沿纬线走过去不超过 2*(r+1)*cellMax，整圈都在游标之前的跳过
+        int firstRing = afterDistance < 0 ? 0 : Math.max(0, (int) Math.ceil(afterDistance / (2 * cellMax)) - 1);
+        //3.大顶堆保留最近的limit个，不按limit预分配，半径内的店铺少时堆也很小
+        PriorityQueue<Hit> top = new PriorityQueue<>(ORDER.reversed());
+        for (int r = firstRing; ; r++) {
+            //第r圈里的点距离至少为ringMin，超过半径或者已经比堆顶远就不用继续
+            double ringMin = ringMinDistance(y, r);
+            if (ringMin > radius || (top.size() == limit && ringMin > top.peek().getDistance())) {
+                break;
+            }
+            for (int dx = -r; dx <= r; dx++) {
+                //上下两行完整扫描，中间的行只看左右两端
+                int step = (dx == -r || dx == r || r == 0) ? 1 : 2 * r;
+                for (int dy = -r; dy <= r; dy += step) {
+                    Set<ShopPoint> cell = grid.get(cellKey(cx + dx, cy + dy));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (ShopPoint e : cell) {
+                        double d = distance(x, y, e.x, e.y);
+                        if (d > radius || d < afterDistance || (d == afterDistance && e.shopId <= afterId)
+                                || (filter != null && !filter.test(e))) {
+                            continue;
+                        }
+                        Hit hit = new Hit(e.shopId, d, e.score);
+                        if (top.size() < limit) {
+                            top.offer(hit);
+                        } else if (ORDER.compare(hit, top.peek()) < 0) {
+                            top.poll();
+                            top.offer(hit);
+                        }
+                    }
+                }
+            }
+        }
+        List<Hit> hits = new ArrayList<>(top);
+        hits.sort(ORDER);
+        return hits;
+    }
+
+    /**
+     * 第r圈里的点到中心距离的下界
+     * 这些点和中心在经度或纬度上至少相差r-1个格子，纬度方向的距离不随纬度变化，经度方向的距离随纬度变短，
+     * 所以按这一圈里离赤道最远的纬度计算，用查询点的纬度会高估下界，把高纬度一侧的店铺剪掉
+     */
+    private double ringMinDistance(double y, int r) {
+        if (r <= 1) {
+            return 0;
+        }
+        double farthest = Math.min(90, Math.abs(y) + (r + 1) * cellDegrees);
+        double cos = Math.max(Math.cos(Math.toRadians(farthest)), 0.01);
+        //两点的纬度余弦都不小于cos时，半正矢公式给出的距离不小于 2R*cos*sin(Δλ/2)
+        return 2 * EARTH_RADIUS * cos * Math.sin(Math.toRadians((r - 1) * cellDegrees) / 2);
+    }
+
+    /**
+     * 收到变更通知，更新本节点的索引；正在全量加载时同时记下来，加载完成后重放
+     */
+    private synchronized void apply(Shop shop) {
+        if (replay != null) {
+            replay.add(shop);
+        }
+        apply(shop, entries, grids);
+    }
+
+    /**
+     * typeId或坐标为空时从索引中删除
+     */
+    private void apply(Shop shop, Map<Long, ShopPoint> targetEntries, Map<Long, Map<Long, Set<ShopPoint>>> targetGrids) {
+        ShopPoint old = targetEntries.remove(shop.getId());
+        if (old != null) {
+            Map<Long, Set<ShopPoint>> grid = targetGrids.get(old.typeId);
+            Set<ShopPoint> cell = grid.get(old.cell);
+            cell.remove(old);
+            if (cell.isEmpty()) {
+                grid.remove(old.cell);
+            }
+        }
+        if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+            return;
+        }
+        ShopPoint entry = ShopPoint.of(shop, cellKey(cell(shop.getX()), cell(shop.getY())));
+        targetEntries.put(entry.shopId, entry);
+        targetGrids.computeIfAbsent(entry.typeId, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(entry.cell, k -> ConcurrentHashMap.newKeySet())
+                .add(entry);
+    }
+
+    private long cell(double degrees) {
+        return (long) Math.floor(degrees / cellDegrees);
+    }
+
+    private static long cellKey(long cx, long cy) {
+        return (cx << 32) ^ (cy & 0xFFFFFFFFL);
+    }
+
+    /**
+     * 球面距离，单位米，和redis的geohashGetDistance相同
+     */
+    private static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Hit {
+        private final long shopId;
+        /*
+        距离，单位米
+        * */
+        private final double distance;
+        /*
+        评分，1~5分乘10
+        * */
+        private final int score;
+    }
+
+    /**
+     * 索引中的店铺，只保留筛选和排序需要的字段
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class ShopPoint {
+        private static final int UNKNOWN = -1;
+        private final long shopId;
+        private final long typeId;
+        private final double x;
+        private final double y;
+        /*
+        均价，未知时为-1
+        * */
+        private final long avgPrice;
+        private final int score;
+        /*
+        营业时间，当天的第几分钟，打烊时间小于开门时间表示营业到第二天，未知时为-1
+        * */
+        private final int openMinute;
+        private final int closeMinute;
+        private final long cell;
+
+        public static ShopPoint of(Shop shop, long cell) {
+            int[] hours = parseOpenHours(shop.getOpenHours());
+            return new ShopPoint(shop.getId(), shop.getTypeId(), shop.getX(), shop.getY(),
+                    shop.getAvgPrice() == null ? UNKNOWN : shop.getAvgPrice(),
+                    shop.getScore() == null ? 0 : shop.getScore(), hours[0], hours[1], cell);
+        }
+
+        /**
+         * 判断某个时间是否在营业，营业时间未知时按营业处理
+         * @param minute 当天的第几分钟
+         */
+        public boolean isOpenAt(int minute) {
+            if (openMinute == UNKNOWN || openMinute == closeMinute) {
+                return true;
+            }
+            if (openMinute < closeMinute) {
+                return minute >= openMinute && minute < closeMinute;
+            }
+            //跨过零点
+            return minute >= openMinute || minute < closeMinute;
+        }
+
+        /**
+         * 解析 10:00-22:00 格式的营业时间，格式不对时返回未知
+         */
+        private static int[] parseOpenHours(String openHours) {
+            int[] unknown = {UNKNOWN, UNKNOWN};
+            if (openHours == null) {
+                return unknown;
+            }
+            String[] range = openHours.trim().split("-");
+            if (range.length != 2) {
+                return unknown;
+            }
+            int open = parseMinute(range[0]);
+            int close = parseMinute(range[1]);
+            return open < 0 || close < 0 ? unknown : new int[]{open, close};
+        }
+
+        private static int parseMinute(String time) {
+            String[] hm = time.trim().split(":");
+            try {
+                int hour = Integer.parseInt(hm[0]);
+                int minute = hm.length > 1 ? Integer.parseInt(hm[1]) : 0;
+                return hour < 0 || hour > 24 || minute < 0 || minute >= 60 ? UNKNOWN : (hour * 60 + minute) % (24 * 60);
+            } catch (NumberFormatException e) {
+                return UNKNOWN;
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.SHOP_NAME_CHANGED_CHANNEL;
+
+/**
+ * 进程内的店铺名称、商圈倒排索引
+ * 名称和商圈统一转小写后拆成单字和相邻两个字（n-gram），每个gram记录包含它的店铺。
+ * 查询时取关键字所有gram的倒排表求交集，再用contains校验去掉误匹配，子串和前缀查询都不需要扫描全表。
+ * 排序：名称前缀匹配 > 名称包含 > 只有商圈包含，同一级里名称越短越靠前，再按评论数倒序。
+ * 启动时全量加载，店铺变更在事务提交后通过redis发布订阅同步到所有节点，加载完成之前 {@link #isReady()} 返回false，由调用方回退到数据库LIKE查询。
+ * 发布订阅断线期间的消息会丢失，由调用方定时重新全量加载兜底
+ */
+@Slf4j
+@Component
+public class ShopNameIndex {
+    private static final Comparator<Match> ORDER = Comparator.comparingInt((Match m) -> m.rank)
+            .thenComparingInt(m -> m.doc.name.length())
+            .thenComparing(Comparator.comparingInt((Match m) -> m.doc.comments).reversed())
+            .thenComparingLong(m -> m.doc.shopId);
+    private final StringRedisTemplate stringRedisTemplate;
+    /*
+    店铺id -> 索引中的店铺，全量加载完成后整体替换
+    * */
+    private volatile Map<Long, Doc> docs = new ConcurrentHashMap<>();
+    /*
+    gram -> 名称或商圈包含这个gram的店铺id，全量加载完成后整体替换
+    * */
+    private volatile Map<String, Set<Long>> postings = new ConcurrentHashMap<>();
+    /*
+    全量加载期间收到的变更，替换之后按顺序重放，不为null表示正在加载
+    * */
+    private List<Shop> replay;
+    private final boolean enabled;
+    private volatile boolean ready;
+
+    public ShopNameIndex(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container,
+                         @Value("${hmdp.search.name-index.enabled:false}") boolean enabled) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.enabled = enabled;
+        if (enabled) {
+            container.addMessageListener((message, pattern) ->
+                    apply(JSONUtil.toBean(new String(message.getBody(), StandardCharsets.UTF_8), Shop.class)),
+                    new ChannelTopic(SHOP_NAME_CHANGED_CHANNEL));
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isReady() {
+        return enabled && ready;
+    }
+
+    /**
+     * 全量加载，启动时和定时重新加载都调用这里
+     * 在新的索引里加载完成后整体替换，查询不受影响；加载期间收到的变更在替换之后重放，不会被旧的数据库快照覆盖
+     * @param nextBatch 按id升序查询大于lastId的下一批店铺，至少包含id、name、area、comments，返回空列表表示结束
+     */
+    public void load(Function<Long, List<Shop>> nextBatch) {
+        if (!enabled) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        synchronized (this) {
+            if (replay != null) {
+                log.info("店铺名称索引正在加载，跳过");
+                return;
+            }
+            replay = new ArrayList<>();
+        }
+        Map<Long, Doc> loadedDocs = new ConcurrentHashMap<>();
+        Map<String, Set<Long>> loadedPostings = new ConcurrentHashMap<>();
+        try {
+            Long lastId = 0L;
+            List<Shop> shops;
+            while (!(shops = nextBatch.apply(lastId)).isEmpty()) {
+                for (Shop shop : shops) {
+                    apply(shop, loadedDocs, loadedPostings);
+                }
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            synchronized (this) {
+                for (Shop shop : replay) {
+                    apply(shop, loadedDocs, loadedPostings);
+                }
+                docs = loadedDocs;
+                postings = loadedPostings;
+            }
+        } finally {
+            synchronized (this) {
+                replay = null;
+            }
+        }
+        ready = true;
+        log.info("店铺名称索引加载完成，店铺{}个，gram{}个，耗时{}ms", loadedDocs.size(), loadedPostings.size(), System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 店铺新增或修改之后调用，通知所有节点更新索引
+     */
+    public void update(Shop shop) {
+        if (enabled && shop != null) {
+            Shop doc = new Shop().setId(shop.getId()).setName(shop.getName()).setArea(shop.getArea()).setComments(shop.getComments());
+            stringRedisTemplate.convertAndSend(SHOP_NAME_CHANGED_CHANNEL, JSONUtil.toJsonStr(doc));
+        }
+    }
+
+    /**
+     * 店铺删除之后调用，通知所有节点更新索引
+     */
+    public void remove(Long shopId) {
+        if (enabled) {
+            stringRedisTemplate.convertAndSend(SHOP_NAME_CHANGED_CHANNEL, JSONUtil.toJsonStr(new Shop().setId(shopId)));
+        }
+    }
+
+    /**
+     * 按名称或商圈的子串查询，返回排序后第offset个开始的limit个店铺id
+     */
+    public List<Long> search(String keyword, int offset, int limit) {
+        String q = normalize(keyword);
+        if (q.isEmpty() || offset < 0 || limit <= 0 || offset > Integer.MAX_VALUE - limit) {
+            return Collections.emptyList();
+        }
+        //1.取所有gram中最短的倒排表作为候选，其余的用来求交集；全量加载可能在查询期间替换索引，只读一次
+        Map<Long, Doc> docs = this.docs;
+        Map<String, Set<Long>> postings = this.postings;
+        List<Set<Long>> lists = new ArrayList<>();
+        for (String gram : grams(q)) {
+            Set<Long> ids = postings.get(gram);
+            if (ids == null) {
+                return Collections.emptyList();
+            }
+            lists.add(ids);
+        }
+        lists.sort(Comparator.comparingInt(Set::size));
+        Set<Long> candidates = lists.get(0);
+        List<Set<Long>> others = lists.subList(1, lists.size());
+        //2.校验子串并打分，大顶堆只保留前offset+limit个，不按k预分配，匹配的店铺少时堆也很小
+        int k = offset + limit;
+        PriorityQueue<Match> top = new PriorityQueue<>(ORDER.reversed());
+        for (Long id : candidates) {
+            if (!containsAll(others, id)) {
+                continue;
+            }
+            Doc doc = docs.get(id);
+            int rank = doc == null ? -1 : rank(doc, q);
+            if (rank < 0) {
+                continue;
+            }
+            Match match = new Match(doc, rank);
+            if (top.size() < k) {
+                top.offer(match);
+            } else if (ORDER.compare(match, top.peek()) < 0) {
+                top.poll();
+                top.offer(match);
+            }
+        }
+        List<Match> matches = new ArrayList<>(top);
+        matches.sort(ORDER);
+        List<Long> page = new ArrayList<>(limit);
+        for (int i = offset; i < matches.size(); i++) {
+            page.add(matches.get(i).doc.shopId);
+        }
+        return page;
+    }
+
+    /**
+     * 更新本节点的索引，名称和商圈都为空时从索引中删除；正在全量加载时记下来，替换之后重放
+     */
+    private synchronized void apply(Shop shop) {
+        if (replay != null) {
+            replay.add(shop);
+        }
+        apply(shop, docs, postings);
+    }
+
+    private void apply(Shop shop, Map<Long, Doc> docs, Map<String, Set<Long>> postings) {
+        Doc old = docs.remove(shop.getId());
+        if (old != null) {
+            for (String gram : old.grams) {
+                Set<Long> ids = postings.get(gram);
+                if (ids != null) {
+                    ids.remove(old.shopId);
+                    if (ids.isEmpty()) {
+                        postings.remove(gram);
+                    }
+                }
+            }
+        }
+        if (StrUtil.isBlank(shop.getName()) && StrUtil.isBlank(shop.getArea())) {
+            return;
+        }
+        Doc doc = new Doc(shop.getId(), normalize(shop.getName()), normalize(shop.getArea()),
+                shop.getComments() == null ? 0 : shop.getComments());
+        for (String gram : doc.grams) {
+            postings.computeIfAbsent(gram, g -> ConcurrentHashMap.newKeySet()).add(doc.shopId);
+        }
+        docs.put(doc.shopId, doc);
+    }
+
+    private static boolean containsAll(List<Set<Long>> lists, Long id) {
+        for (Set<Long> ids : lists) {
+            if (!ids.contains(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 0：名称前缀；1：名称包含；2：商圈包含；-1：不匹配
+     */
+    private static int rank(Doc doc, String q) {
+        int i = doc.name.indexOf(q);
+        if (i == 0) {
+            return 0;
+        }
+        if (i > 0) {
+            return 1;
+        }
+        return doc.area.contains(q) ? 2 : -1;
+    }
+
+    private static String normalize(String s) {
+        return s == null ? "" : s.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 一个字的关键字用单字，否则用相邻两个字，查询和建索引用同样的规则
+     */
+    private static Set<String> grams(String s) {
+        Set<String> grams = new HashSet<>();
+        if (s.length() == 1) {
+            grams.add(s);
+            return grams;
+        }
+        for (int i = 0; i + 2 <= s.length(); i++) {
+            grams.add(s.substring(i, i + 2));
+        }
+        return grams;
+    }
+
+    private static class Doc {
+        final long shopId;
+        final String name;
+        final String area;
+        final int comments;
+        /*
+        名称和商圈的单字、双字gram，删除时按它清理倒排表
+        * */
+        final Set<String> grams = new HashSet<>();
+
+        Doc(long shopId, String name, String area, int comments) {
+            this.shopId = shopId;
+            this.name = name;
+            this.area = area;
+            this.comments = comments;
+            for (String s : new String[]{name, area}) {
+                for (int i = 0; i < s.length(); i++) {
+                    grams.add(s.substring(i, i + 1));
+                    if (i + 2 <= s.length()) {
+                        grams.add(s.substring(i, i + 2));
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Match {
+        final Doc doc;
+        final int rank;
+
+        Match(Doc doc, int rank) {
+            this.doc = doc;
+            this.rank = rank;
+        }
+    }
+}
@@ -1,9 +1,8 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 
 
 import java.util.Collections;
@@ -14,18 +13,17 @@ public class SimpleRedisLock implements  ILock{
     private static final String ID_PREFIX = UUID.randomUUID().toString(true)+"-";
     private String name;
     private StringRedisTemplate stringRedisTemplate;
-    private static  final DefaultRedisScript<Long> UNLOCK_SCRIPT;
-    static {
-        UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
+    private RedisScriptRegistry redisScriptRegistry;
+    private RedisScript<Long> unlockScript;
 
 
 
-    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, RedisScriptRegistry redisScriptRegistry) {
         this.name = name;
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScriptRegistry = redisScriptRegistry;
+        //脚本在注册中心里只加载一次，这里拿到的是同一个脚本
+        this.unlockScript = redisScriptRegistry.register("unlock", Long.class);
     }
 
     @Override
@@ -48,6 +46,6 @@ public class SimpleRedisLock implements  ILock{
 //        }
 
         //调用lua脚本
-        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(KEY_PREFIX+name),ID_PREFIX+Thread.currentThread().getId());
+        redisScriptRegistry.execute(unlockScript, Collections.singletonList(KEY_PREFIX+name),ID_PREFIX+Thread.currentThread().getId());
     }
 }
@@ -0,0 +1,167 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_TTL;
+
+/**
+ * 雪花算法：模式位1位（固定为1） + 毫秒时间戳40位 + workerId 10位 + 每毫秒序列号12位
+ * 号段模式的id是 秒级时间戳<<32，2056年之前第62位始终为0，雪花id把第62位固定为1，两种模式切换后生成的id也不会落在同一个区间
+ * workerId在启动时通过 SET id:worker:n 实例标示 NX EX 租用，之后定时续期，生成id不再访问redis
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.id.mode", havingValue = "snowflake")
+public class SnowflakeIdGenerator implements IIdGenerator {
+    /*
+    开始时间戳，和号段模式一样从2022-01-01开始，单位毫秒
+    * */
+    private static final long BEGIN_TIMESTAMP = 1640995200000L;
+    private static final int WORKER_ID_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER_ID = (1L << WORKER_ID_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int TIMESTAMP_BITS = 40;
+    private static final long MAX_TIMESTAMP = (1L << TIMESTAMP_BITS) - 1;
+    /*
+    模式位，和号段模式的id区分开
+    * */
+    private static final long MODE_BIT = 1L << (TIMESTAMP_BITS + WORKER_ID_BITS + SEQUENCE_BITS);
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisScriptRegistry redisScriptRegistry;
+    private final RedisScript<Long> renewScript;
+    private final RedisScript<Long> unlockScript;
+    /*
+    租约的持有者标示，同一台机器上的多个进程也不会冲突
+    * */
+    private final String instanceId = NetUtil.getLocalHostName() + "-" + UUID.randomUUID().toString(true);
+
+    @Value("${hmdp.id.max-backward-ms:5}")
+    private long maxBackwardMs;
+
+    private volatile long workerId = -1;
+    /*
+    租约到期时间，续期一直失败超过这个时间后，workerId可能已经被别的节点拿走，停止生成id
+    * */
+    private volatile long leaseExpireAt;
+    private long lastTimestamp = -1;
+    private long sequence;
+
+    public SnowflakeIdGenerator(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry redisScriptRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScriptRegistry = redisScriptRegistry;
+        this.renewScript = redisScriptRegistry.register("renew", Long.class);
+        this.unlockScript = redisScriptRegistry.register("unlock", Long.class);
+    }
+
+    @PostConstruct
+    private void init() {
+        acquireWorkerId();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        //释放租约，只删除自己持有的key
+        redisScriptRegistry.execute(unlockScript, Collections.singletonList(ID_WORKER_KEY + workerId), instanceId);
+    }
+
+    @Override
+    public synchronized long nextId(String keyPrefix) {
+        long now = currentTimeMillis();
+        if (now > leaseExpireAt) {
+            throw new IllegalStateException("workerId租约已过期：" + workerId);
+        }
+        //1.时钟回拨：小幅回拨等时钟追上，大幅回拨直接拒绝，避免生成重复id
+        if (now < lastTimestamp) {
+            long offset = lastTimestamp - now;
+            if (offset > maxBackwardMs) {
+                throw new IllegalStateException("时钟回拨" + offset + "ms，拒绝生成id");
+            }
+            now = waitUntilAfter(lastTimestamp - 1);
+        }
+        //2.同一毫秒内序列号自增，用完了就等下一毫秒
+        if (now == lastTimestamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                now = waitUntilAfter(lastTimestamp);
+            }
+        } else {
+            sequence = 0;
+        }
+        lastTimestamp = now;
+        //3.拼接返回，时间戳超过40位会覆盖模式位，直接拒绝
+        long timestamp = now - BEGIN_TIMESTAMP;
+        if (timestamp > MAX_TIMESTAMP) {
+            throw new IllegalStateException("时间戳超出" + TIMESTAMP_BITS + "位，无法生成id");
+        }
+        return MODE_BIT | timestamp << (WORKER_ID_BITS + SEQUENCE_BITS) | workerId << SEQUENCE_BITS | sequence;
+    }
+
+    private long waitUntilAfter(long timestamp) {
+        long now = currentTimeMillis();
+        while (now <= timestamp) {
+            Thread.yield();
+            now = currentTimeMillis();
+        }
+        return now;
+    }
+
+    /**
+     * 生成id使用的时钟，测试中可以覆盖来模拟时钟回拨
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * 定时续期，间隔是租约有效期（ID_WORKER_TTL 60秒）的三分之一，redis短暂不可用时依然可以用本地的workerId继续生成
+     */
+    @Scheduled(fixedDelay = 20000)
+    public void renewWorkerId() {
+        try {
+            Long renewed = redisScriptRegistry.execute(renewScript, Collections.singletonList(ID_WORKER_KEY + workerId),
+                    instanceId, String.valueOf(ID_WORKER_TTL));
+            if (renewed != null && renewed == 1) {
+                leaseExpireAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ID_WORKER_TTL);
+                return;
+            }
+            //租约已经被别的节点拿走，重新租用一个
+            log.warn("workerId {}的租约已丢失，重新租用", workerId);
+            acquireWorkerId();
+        } catch (Exception e) {
+            log.error("workerId {}续期失败", workerId, e);
+        }
+    }
+
+    private synchronized void acquireWorkerId() {
+        //从随机位置开始尝试，减少多个节点同时启动时的冲突
+        long start = RandomUtil.randomLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, instanceId, ID_WORKER_TTL, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                workerId = id;
+                leaseExpireAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ID_WORKER_TTL);
+                log.info("租用workerId：{}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有可用的workerId");
+    }
+}
@@ -0,0 +1,102 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 订单消息队列的裁剪和积压指标
+ * 指标通过 /actuator/metrics 和 /actuator/prometheus 导出：
+ * seckill.stream.length、seckill.stream.pending、seckill.stream.dlq.length、
+ * seckill.stream.consumer.idle{consumer}、seckill.order.lag（XADD到订单落库的耗时）
+ */
+@Slf4j
+@Component
+public class StreamOrderMonitor {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisScriptRegistry redisScriptRegistry;
+    private final RedisScript<Long> trimScript;
+    private final AtomicLong streamLength = new AtomicLong();
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final AtomicLong dlqLength = new AtomicLong();
+    private final MultiGauge consumerIdle;
+    private final Timer orderLag;
+
+    @Value("${hmdp.seckill.order.dlq-max-len:100000}")
+    private long dlqMaxLen;
+
+    public StreamOrderMonitor(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry redisScriptRegistry, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScriptRegistry = redisScriptRegistry;
+        this.trimScript = redisScriptRegistry.register("trim", Long.class);
+        Gauge.builder("seckill.stream.length", streamLength, AtomicLong::get)
+                .description("stream.orders中的消息数").register(meterRegistry);
+        Gauge.builder("seckill.stream.pending", pendingCount, AtomicLong::get)
+                .description("已投递但还没有确认的消息数").register(meterRegistry);
+        Gauge.builder("seckill.stream.dlq.length", dlqLength, AtomicLong::get)
+                .description("死信队列中的消息数").register(meterRegistry);
+        this.consumerIdle = MultiGauge.builder("seckill.stream.consumer.idle")
+                .description("消费者距离上一次读取消息的毫秒数").baseUnit("milliseconds").register(meterRegistry);
+        this.orderLag = Timer.builder("seckill.order.lag")
+                .description("订单从XADD到落库提交的耗时").publishPercentiles(0.5, 0.99).register(meterRegistry);
+    }
+
+    /**
+     * 记录一批订单的端到端延迟，消息id的毫秒部分就是XADD的时间
+     */
+    public void recordLag(RecordId... ids) {
+        long now = System.currentTimeMillis();
+        for (RecordId id : ids) {
+            orderLag.record(Math.max(0, now - id.getTimestamp()), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order.monitor-interval-ms:10000}")
+    public void trimAndSample() {
+        try {
+            //1.按消费者组的进度裁剪 XTRIM stream.orders MINID ~ id
+            Long trimmed = redisScriptRegistry.execute(trimScript, Collections.singletonList(STREAM_ORDERS_KEY));
+            if(trimmed != null && trimmed > 0) {
+                log.debug("裁剪订单消息{}条", trimmed);
+            }
+            //2.死信队列只需要保留最近的消息 XTRIM stream.orders.dlq MAXLEN ~ n
+            if(Boolean.TRUE.equals(stringRedisTemplate.hasKey(STREAM_ORDERS_DLQ_KEY))) {
+                stringRedisTemplate.opsForStream().trim(STREAM_ORDERS_DLQ_KEY, dlqMaxLen, true);
+                dlqLength.set(stringRedisTemplate.opsForStream().size(STREAM_ORDERS_DLQ_KEY));
+            }
+            //3.采集积压指标
+            if(!Boolean.TRUE.equals(stringRedisTemplate.hasKey(STREAM_ORDERS_KEY))) {
+                return;
+            }
+            streamLength.set(stringRedisTemplate.opsForStream().size(STREAM_ORDERS_KEY));
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP);
+            pendingCount.set(summary == null ? 0 : summary.getTotalPendingMessages());
+            StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP);
+            List<MultiGauge.Row<?>> rows = consumers.stream()
+                    .map(c -> MultiGauge.Row.of(Tags.of("consumer", c.consumerName()), c.idleTimeMs()))
+                    .collect(Collectors.toList());
+            consumerIdle.register(rows, true);
+        } catch (Exception e) {
+            log.error("采集订单消息队列指标异常", e);
+        }
+    }
+}
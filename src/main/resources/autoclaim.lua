@@ -0,0 +1,26 @@
+-- 认领空闲时间超过 min-idle 的消息（包括已经宕机的消费者名下的消息），并带上每条消息的投递次数
+-- KEYS[1] 消息队列 stream.orders
+-- ARGV[1] 消费者组 ARGV[2] 消费者 ARGV[3] min-idle毫秒 ARGV[4] 起始游标 ARGV[5] COUNT
+-- 返回 { 下一次的游标, { id, 投递次数, k1, v1, k2, v2... }, ... }
+local claimed = redis.call('xautoclaim', KEYS[1], ARGV[1], ARGV[2], ARGV[3], ARGV[4], 'COUNT', ARGV[5])
+local result = { claimed[1] }
+for _, entry in ipairs(claimed[2]) do
+    if type(entry) == 'table' and entry[2] then
+        local id = entry[1]
+        -- XAUTOCLAIM 会让投递次数+1，XPENDING id id 1 取到的就是包括这一次在内的投递次数
+        local pending = redis.call('xpending', KEYS[1], ARGV[1], id, id, 1)
+        local deliveries = 1
+        if pending[1] then
+            deliveries = pending[1][4]
+        end
+        local item = { id, deliveries }
+        for _, v in ipairs(entry[2]) do
+            item[#item + 1] = v
+        end
+        result[#result + 1] = item
+    elseif type(entry) == 'table' then
+        -- 消息已经被删除，只剩pending-list里的id，直接确认掉
+        redis.call('xack', KEYS[1], ARGV[1], entry[1])
+    end
+end
+return result
@@ -0,0 +1,9 @@
+-- 把超过重试次数的消息转移到死信队列，并从原队列的pending-list中确认掉，两步在一个脚本里保证原子性
+-- KEYS[1] 消息队列 stream.orders  KEYS[2] 死信队列 stream.orders.dlq
+-- ARGV[1] 消费者组 ARGV[2] 消息id ARGV[3] 投递次数 ARGV[4...] 原消息的 k1 v1 k2 v2...
+local fields = { 'sourceId', ARGV[2], 'deliveries', ARGV[3] }
+for i = 4, #ARGV do
+    fields[#fields + 1] = ARGV[i]
+end
+redis.call('xadd', KEYS[2], '*', unpack(fields))
+return redis.call('xack', KEYS[1], ARGV[1], ARGV[2])
@@ -0,0 +1,60 @@
+-- 按距离游标查询下一页店铺，只返回排在游标之后的count个，不再把前面几页传回客户端
+-- 第一页执行一次GEOSEARCHSTORE，把半径内的店铺按距离存入本次滚动的有序集合（KEYS[2]），
+-- 之后的每一页只在有序集合里按分数从游标位置取，redis的开销是O(log(N)+count)，和翻到第几页无关
+-- KEYS[1] shop:geo:typeId KEYS[2] {shop:geo:typeId}:scroll:经度:纬度，hash tag保证和KEYS[1]在同一个slot
+-- ARGV[1] 经度 ARGV[2] 纬度 ARGV[3] 最大半径（米）
+-- ARGV[4] 上一页最后一个店铺的距离，从头查询时传-1 ARGV[5] 上一页最后一个店铺的id
+-- ARGV[6] 每页数量 ARGV[7] 滚动有序集合的有效期（秒）
+-- 返回 {id1, 距离1, id2, 距离2, ...}，按（距离，id）升序
+local lastDistance = tonumber(ARGV[4])
+local lastId = tonumber(ARGV[5])
+local count = tonumber(ARGV[6])
+-- 1.从头查询，或者滚动的有序集合已经过期，重新按半径筛选一次
+if lastDistance < 0 or redis.call('EXISTS', KEYS[2]) == 0 then
+    redis.call('GEOSEARCHSTORE', KEYS[2], KEYS[1], 'FROMLONLAT', ARGV[1], ARGV[2], 'BYRADIUS', ARGV[3], 'm', 'ASC', 'STOREDIST')
+end
+redis.call('EXPIRE', KEYS[2], ARGV[7])
+local hits = {}
+local function collect(results, skip)
+    for i = 1, #results, 2 do
+        local id = tonumber(results[i])
+        if not skip(id) then
+            hits[#hits + 1] = {id, tonumber(results[i + 1]), results[i], results[i + 1]}
+        end
+    end
+end
+-- 2.和游标距离相同的店铺只取id更大的，有序集合里分数相同时按字符串排序，和游标的规则不一致，单独处理
+local lower = '-inf'
+if lastDistance >= 0 then
+    collect(redis.call('ZRANGEBYSCORE', KEYS[2], ARGV[4], ARGV[4], 'WITHSCORES'), function(id) return id <= lastId end)
+    lower = '(' .. ARGV[4]
+end
+-- 3.游标之后的count个，最后一个店铺的距离上可能还有并列的店铺，全部取出来按id排序
+local rest = redis.call('ZRANGEBYSCORE', KEYS[2], lower, '+inf', 'WITHSCORES', 'LIMIT', 0, count)
+if #rest == count * 2 and count > 0 then
+    local boundary = rest[#rest]
+    collect(rest, function(id) return false end)
+    local kept = {}
+    for _, h in ipairs(hits) do
+        if h[4] ~= boundary then
+            kept[#kept + 1] = h
+        end
+    end
+    hits = kept
+    collect(redis.call('ZRANGEBYSCORE', KEYS[2], boundary, boundary, 'WITHSCORES'), function(id) return false end)
+else
+    collect(rest, function(id) return false end)
+end
+-- 距离相同时按id排序，和游标的比较规则一致
+table.sort(hits, function(a, b)
+    if a[2] ~= b[2] then
+        return a[2] < b[2]
+    end
+    return a[1] < b[1]
+end)
+local page = {}
+for i = 1, math.min(count, #hits) do
+    page[#page + 1] = hits[i][3]
+    page[#page + 1] = hits[i][4]
+end
+return page
@@ -0,0 +1,5 @@
+-- 比较持有者标示，一致才续期
+if(redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('expire', KEYS[1], ARGV[2])
+end
+return 0
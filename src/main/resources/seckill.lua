@@ -8,7 +8,8 @@ local userId = ARGV[2]
 local orderId = ARGV[3]
 local stockKey = 'seckill:stock:' .. voucherId
 local orderKey = 'seckill:order:' .. voucherId
-if(tonumber(redis.call('get', stockKey)) <= 0) then
+-- 库存还没有预热时当作库存不足
+if(tonumber(redis.call('get', stockKey) or '0') <= 0) then
     return 1
 end
 if(redis.call('sismember', orderKey, userId) == 1) then
@@ -0,0 +1,14 @@
+-- 分片库存的秒杀脚本，只访问同一个分片（同一个hash tag）里的库存和订单集合，可以在redis集群中执行
+-- KEYS[1] 分片库存 seckill:stock:{voucherId:i}  KEYS[2] 分片订单集合 seckill:order:{voucherId:i}
+-- ARGV[1] 用户id  ARGV[2] 为'1'时表示已经从其他分片扣减过库存，这里只记录下单用户
+if(redis.call('sismember', KEYS[2], ARGV[1]) == 1) then
+    return 2
+end
+if(ARGV[2] ~= '1') then
+    if(tonumber(redis.call('get', KEYS[1]) or '0') <= 0) then
+        return 1
+    end
+    redis.call('incrby', KEYS[1], -1)
+end
+redis.call('sadd', KEYS[2], ARGV[1])
+return 0
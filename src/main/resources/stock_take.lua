@@ -0,0 +1,7 @@
+-- 从分片中扣减一个库存，用户所在的分片卖完时向兄弟分片借库存
+-- KEYS[1] 分片库存 seckill:stock:{voucherId:i}
+if(tonumber(redis.call('get', KEYS[1]) or '0') <= 0) then
+    return 1
+end
+redis.call('incrby', KEYS[1], -1)
+return 0
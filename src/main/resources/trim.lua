@@ -0,0 +1,41 @@
+-- 按消费者组的消费进度裁剪消息队列：所有组都已经确认过的消息才会被删除
+-- 每个组的安全位置：有pending消息时取pending-list中最小的id，否则取last-delivered-id
+-- KEYS[1] 消息队列 stream.orders
+-- 返回被裁剪掉的消息数
+if redis.call('exists', KEYS[1]) == 0 then
+    return 0
+end
+local function compare(a, b)
+    local ams, aseq = string.match(a, '(%d+)-(%d+)')
+    local bms, bseq = string.match(b, '(%d+)-(%d+)')
+    ams, aseq, bms, bseq = tonumber(ams), tonumber(aseq), tonumber(bms), tonumber(bseq)
+    if ams ~= bms then
+        return ams < bms and -1 or 1
+    end
+    if aseq ~= bseq then
+        return aseq < bseq and -1 or 1
+    end
+    return 0
+end
+local groups = redis.call('xinfo', 'groups', KEYS[1])
+if #groups == 0 then
+    -- 没有消费者组的时候不知道哪些消息已经处理过，不裁剪
+    return 0
+end
+local minId = nil
+for _, group in ipairs(groups) do
+    local info = {}
+    for i = 1, #group, 2 do
+        info[group[i]] = group[i + 1]
+    end
+    local safeId = info['last-delivered-id']
+    if tonumber(info['pending']) > 0 then
+        local summary = redis.call('xpending', KEYS[1], info['name'])
+        safeId = summary[2]
+    end
+    if minId == nil or compare(safeId, minId) < 0 then
+        minId = safeId
+    end
+end
+-- MINID ~ 让redis按整个宏节点裁剪，开销很小，会多保留少量已确认的消息
+return redis.call('xtrim', KEYS[1], 'MINID', '~', minId)
@@ -1,9 +1,13 @@
 package com.hmdp;
 
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
 
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.ShopNameIndex;
+import com.hmdp.utils.SystemConstants;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.geo.Point;
@@ -33,6 +37,9 @@ class HmDianPingApplicationTests {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private ShopNameIndex shopNameIndex;
+
     private ExecutorService es = Executors.newFixedThreadPool(500);
 
     @Test
@@ -83,6 +90,38 @@ class HmDianPingApplicationTests {
         }
     }
 
+    @Test
+    void testShopNameIndex() {
+        //1.启动时已经加载过，这里再加载一次保证索引可用
+        shopNameIndex.load(lastId -> shopService.query().select("id", "name", "area", "comments")
+                .gt("id", lastId).orderByAsc("id").last("limit 1000").list());
+        String[] keywords = {"茶", "火锅", "海底捞", "ktv", "上塘"};
+        //2.索引返回的店铺名称或商圈一定包含关键字
+        for (String keyword : keywords) {
+            for (Shop shop : shopService.listByIds(shopNameIndex.search(keyword, 0, SystemConstants.MAX_PAGE_SIZE))) {
+                String text = (shop.getName() + " " + shop.getArea()).toLowerCase();
+                Assertions.assertTrue(text.contains(keyword), shop.getName() + "不包含" + keyword);
+            }
+        }
+        //3.和数据库LIKE分页对比耗时
+        int n = 1000;
+        for (int i = 0; i < n; i++) {
+            shopNameIndex.search(keywords[i % keywords.length], 0, SystemConstants.MAX_PAGE_SIZE);
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            shopNameIndex.search(keywords[i % keywords.length], 0, SystemConstants.MAX_PAGE_SIZE);
+        }
+        long index = System.nanoTime() - begin;
+        begin = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            shopService.query().like("name", keywords[i % keywords.length])
+                    .page(new Page<>(1, SystemConstants.MAX_PAGE_SIZE));
+        }
+        long like = System.nanoTime() - begin;
+        System.out.println("index = " + index / n + "ns, like = " + like / n + "ns");
+    }
+
     @Test
     void testHyperLogLog() {
         String[] values = new String[1000];
@@ -0,0 +1,82 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.extension.conditions.update.UpdateChainWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+/**
+ * 订单批量落库：按优惠券分组扣减库存，任何一组库存不足都要抛出异常回滚整批，不能丢弃已经告诉用户成功的订单
+ */
+class VoucherOrderServiceImplTest {
+    private VoucherOrderServiceImpl service;
+    private VoucherOrderMapper orderMapper;
+    private SeckillVoucherMapper voucherMapper;
+
+    @BeforeEach
+    void setUp() {
+        service = new VoucherOrderServiceImpl();
+        orderMapper = mock(VoucherOrderMapper.class);
+        voucherMapper = mock(SeckillVoucherMapper.class);
+        ISeckillVoucherService seckillVoucherService = mock(ISeckillVoucherService.class);
+        when(seckillVoucherService.update()).thenAnswer(inv -> new UpdateChainWrapper<SeckillVoucher>(voucherMapper));
+        ReflectionTestUtils.setField(service, "baseMapper", orderMapper);
+        ReflectionTestUtils.setField(service, "seckillVoucherService", seckillVoucherService);
+        //没有已经落库的订单
+        when(orderMapper.selectObjs(any())).thenReturn(Collections.emptyList());
+    }
+
+    @Test
+    void decrementsOncePerVoucherAndInsertsAllOrders() {
+        when(voucherMapper.update(any(), any())).thenReturn(1);
+        List<VoucherOrder> orders = Arrays.asList(order(1, 10), order(2, 10), order(3, 20));
+
+        service.createVoucherOrders(orders);
+
+        //两张券各扣减一次，三个订单一次写入
+        verify(voucherMapper, times(2)).update(any(), any());
+        verify(orderMapper).insertBatch(orders);
+    }
+
+    @Test
+    void stockShortageFailsTheWholeBatch() throws NoSuchMethodException {
+        //第一张券扣减成功，第二张券库存不足
+        when(voucherMapper.update(any(), any())).thenReturn(1, 0);
+        List<VoucherOrder> orders = Arrays.asList(order(1, 10), order(2, 20));
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> service.createVoucherOrders(orders));
+        assertTrue(e.getMessage().contains("20"));
+        //没有写入任何订单，运行时异常让事务回滚第一张券的扣减，调用方不会ACK这批消息
+        verify(orderMapper, never()).insertBatch(anyList());
+        assertNotNull(VoucherOrderServiceImpl.class.getMethod("createVoucherOrders", List.class).getAnnotation(Transactional.class));
+    }
+
+    @Test
+    void skipsOrdersAlreadySaved() {
+        when(orderMapper.selectObjs(any())).thenReturn(Collections.singletonList(1L));
+        when(voucherMapper.update(any(), any())).thenReturn(1);
+
+        service.createVoucherOrders(Arrays.asList(order(1, 10), order(2, 10)));
+
+        verify(orderMapper).insertBatch(Collections.singletonList(order(2, 10)));
+    }
+
+    private static VoucherOrder order(long id, long voucherId) {
+        return new VoucherOrder().setId(id).setUserId(id).setVoucherId(voucherId);
+    }
+}
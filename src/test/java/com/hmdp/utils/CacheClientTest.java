@@ -0,0 +1,109 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * single-flight：同一个节点上对同一个key的并发未命中只调用一次加载函数
+ * redis始终未命中，加载函数等到其余线程都在等待它的结果之后才返回
+ */
+class CacheClientTest {
+    private static final int THREADS = 8;
+    private CacheClient cacheClient;
+    private ExecutorService executor;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> valueOps = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(valueOps);
+        when(valueOps.setIfAbsent(anyString(), anyString(), anyLong(), any())).thenReturn(true);
+        IdBloomFilter bloomFilter = mock(IdBloomFilter.class);
+        when(bloomFilter.mightContain(anyString(), any())).thenReturn(true);
+        cacheClient = new CacheClient(template, bloomFilter, new JsonCacheCodec(), mock(HotKeyDetector.class),
+                mock(RedisMessageListenerContainer.class), new SimpleMeterRegistry(), false, 100, 30, 100, 2000);
+        ReflectionTestUtils.setField(cacheClient, "loadTimeoutMs", 5000L);
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @Test
+    void concurrentMissesShareOneLoad() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        Function<Long, String> loader = id -> {
+            loads.incrementAndGet();
+            awaitWaiters("cache:test:1");
+            return "shop-" + id;
+        };
+
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(() -> cacheClient.queryWithMutex("cache:test:", 1L, String.class, loader, 1L, TimeUnit.MINUTES)));
+        }
+        for (Future<String> result : results) {
+            assertEquals("shop-1", result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, loads.get());
+        executor.shutdown();
+    }
+
+    @Test
+    void failedLoadReachesWaitersAndIsNotCached() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        Function<Long, String> failing = id -> {
+            loads.incrementAndGet();
+            awaitWaiters("cache:test:2");
+            throw new IllegalStateException("db down");
+        };
+
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(() -> cacheClient.queryWithMutex("cache:test:", 2L, String.class, failing, 1L, TimeUnit.MINUTES)));
+        }
+        for (Future<String> result : results) {
+            Exception e = assertThrows(Exception.class, () -> result.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(1, loads.get());
+        //失败的加载不会留在inFlight里，下一次未命中重新加载
+        assertEquals("shop-2", cacheClient.queryWithMutex("cache:test:", 2L, String.class, id -> "shop-" + id, 1L, TimeUnit.MINUTES));
+        executor.shutdown();
+    }
+
+    /*
+    等到其余线程都阻塞在本次加载的future上，get()会在future上登记一个等待节点
+    * */
+    @SuppressWarnings("unchecked")
+    private void awaitWaiters(String key) {
+        Map<String, CompletableFuture<Object>> inFlight = (Map<String, CompletableFuture<Object>>) ReflectionTestUtils.getField(cacheClient, "inFlight");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (inFlight.get(key).getNumberOfDependents() < THREADS - 1) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("其余线程没有等待同一次加载");
+            }
+            Thread.yield();
+        }
+    }
+}
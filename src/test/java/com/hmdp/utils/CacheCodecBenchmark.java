@@ -0,0 +1,67 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 两种缓存编码的编解码耗时，不属于单元测试，surefire不会执行
+ * 运行：mvn test-compile 之后执行main方法，或者
+ * mvn exec:java -Dexec.mainClass=com.hmdp.utils.CacheCodecBenchmark -Dexec.classpathScope=test
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheCodecBenchmark {
+    @Param({"json", "binary"})
+    private String codecName;
+
+    private ICacheCodec codec;
+    private Shop shop;
+    private byte[] bytes;
+    private long expireAt;
+
+    @Setup
+    public void setUp() {
+        codec = "binary".equals(codecName) ? new BinaryCacheCodec() : new JsonCacheCodec();
+        shop = CacheCodecTest.fullShop();
+        expireAt = System.currentTimeMillis() + 20000;
+        bytes = codec.encode(shop, expireAt, 10);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(shop, expireAt, 10);
+    }
+
+    @Benchmark
+    public CacheEntry<Shop> decode() {
+        return codec.decodeEntry(bytes, Shop.class);
+    }
+
+    @Benchmark
+    public long readExpireAt() {
+        return codec.readExpireAt(bytes);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CacheCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
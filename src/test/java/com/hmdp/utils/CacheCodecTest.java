@@ -0,0 +1,93 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * json和二进制两种编码的往返：字段、空值、逻辑过期时间和重建耗时都要原样还原
+ */
+class CacheCodecTest {
+    private final ICacheCodec[] codecs = {new JsonCacheCodec(), new BinaryCacheCodec()};
+
+    @Test
+    void logicalExpireRoundTrip() {
+        Shop shop = fullShop();
+        long expireAt = System.currentTimeMillis() + 20000;
+        for (ICacheCodec codec : codecs) {
+            CacheEntry<Shop> entry = codec.decodeEntry(codec.encode(shop, expireAt, 35), Shop.class);
+            assertNotNull(entry, codec.getClass().getSimpleName());
+            assertEquals(shop, entry.getValue());
+            assertEquals(expireAt, entry.getExpireAt());
+            assertEquals(35, entry.getDelta());
+        }
+    }
+
+    @Test
+    void nullFieldsStayNull() {
+        Shop shop = new Shop().setId(2L).setName("只有名字").setScore(0);
+        for (ICacheCodec codec : codecs) {
+            Shop plain = codec.decode(codec.encode(shop), Shop.class);
+            assertEquals(shop, plain, codec.getClass().getSimpleName());
+            assertNull(plain.getX());
+            assertNull(plain.getCreateTime());
+            assertEquals(0, plain.getScore());
+
+            CacheEntry<Shop> entry = codec.decodeEntry(codec.encode(shop, System.currentTimeMillis(), 0), Shop.class);
+            assertEquals(shop, entry.getValue());
+            assertEquals(0, entry.getDelta());
+        }
+    }
+
+    @Test
+    void plainRoundTrip() {
+        Shop shop = fullShop();
+        for (ICacheCodec codec : codecs) {
+            assertEquals(shop, codec.decode(codec.encode(shop), Shop.class), codec.getClass().getSimpleName());
+        }
+        //二进制的普通格式就是永不过期的逻辑过期格式
+        BinaryCacheCodec binary = new BinaryCacheCodec();
+        CacheEntry<Shop> entry = binary.decodeEntry(binary.encode(shop), Shop.class);
+        assertEquals(Long.MAX_VALUE, entry.getExpireAt());
+        //json的普通格式没有过期时间，不能按逻辑过期解析
+        JsonCacheCodec json = new JsonCacheCodec();
+        assertNull(json.decodeEntry(json.encode(shop), Shop.class));
+    }
+
+    @Test
+    void readExpireAtOnlyReadsTheBinaryHeader() {
+        BinaryCacheCodec binary = new BinaryCacheCodec();
+        byte[] bytes = binary.encode(fullShop(), 123456789L, 10);
+        assertEquals(123456789L, binary.readExpireAt(bytes));
+        //头部之后的内容不参与读取
+        bytes[bytes.length - 1] ^= 0x7F;
+        assertEquals(123456789L, binary.readExpireAt(bytes));
+        assertEquals(Long.MAX_VALUE, binary.readExpireAt(binary.encode(fullShop())));
+        assertEquals(-1, binary.readExpireAt(new byte[0]));
+        assertEquals(-1, binary.readExpireAt("{\"id\":1}".getBytes(StandardCharsets.UTF_8)));
+
+        JsonCacheCodec json = new JsonCacheCodec();
+        assertEquals(-1, json.readExpireAt(json.encode(fullShop(), 123456789L, 10)));
+    }
+
+    @Test
+    void foreignFormatIsAMiss() {
+        byte[] json = new JsonCacheCodec().encode(fullShop(), 1000, 0);
+        assertNull(new BinaryCacheCodec().decodeEntry(json, Shop.class));
+        byte[] binary = new BinaryCacheCodec().encode(fullShop(), 1000, 0);
+        assertNull(new JsonCacheCodec().decodeEntry(binary, Shop.class));
+    }
+
+    static Shop fullShop() {
+        return new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号").setX(120.149192).setY(30.316078)
+                .setAvgPrice(80L).setSold(4215).setComments(3035).setScore(37).setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.now().withNano(0)).setUpdateTime(LocalDateTime.now().withNano(0))
+                .setDistance(12.5);
+    }
+}
@@ -0,0 +1,294 @@
+package com.hmdp.utils;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.VarArgFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 单元测试用的内存redis：用luaj执行resources下真实的lua脚本，redis.call只实现脚本用到的命令，
+ * 返回值按redis和lua之间的类型转换规则处理（整数、字符串、nil -> false、数组）
+ */
+class FakeRedis {
+    /*
+    和redis GEO计算距离使用的地球半径一致
+    * */
+    private static final double EARTH_RADIUS_M = 6372797.560856;
+    final Map<String, String> strings = new ConcurrentHashMap<>();
+    final Map<String, Set<String>> sets = new ConcurrentHashMap<>();
+    final Map<String, Map<String, Double>> zsets = new ConcurrentHashMap<>();
+    final Map<String, Map<String, double[]>> geos = new ConcurrentHashMap<>();
+    final Map<String, Long> ttls = new ConcurrentHashMap<>();
+    final Map<String, List<Map<?, ?>>> streams = new ConcurrentHashMap<>();
+
+    /**
+     * 执行脚本的注册中心，register返回真实的脚本对象，execute在内存中执行
+     */
+    RedisScriptRegistry registry() {
+        RedisScriptRegistry registry = mock(RedisScriptRegistry.class);
+        when(registry.register(anyString(), any())).thenAnswer(inv -> {
+            DefaultRedisScript<Object> script = new DefaultRedisScript<>();
+            script.setLocation(new ClassPathResource(inv.getArgument(0) + ".lua"));
+            script.setResultType(inv.getArgument(1));
+            return script;
+        });
+        when(registry.execute(any(), any(), any())).thenAnswer(inv -> {
+            Object[] args = Arrays.copyOfRange(inv.getArguments(), 2, inv.getArguments().length);
+            return eval(inv.getArgument(0), inv.getArgument(1), args);
+        });
+        return registry;
+    }
+
+    /**
+     * 和脚本共享同一份数据的StringRedisTemplate，只实现SET、INCR、SREM、XADD
+     */
+    @SuppressWarnings("unchecked")
+    StringRedisTemplate template() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> valueOps = mock(ValueOperations.class);
+        SetOperations<String, String> setOps = mock(SetOperations.class);
+        StreamOperations<String, Object, Object> streamOps = mock(StreamOperations.class);
+        when(template.opsForValue()).thenReturn(valueOps);
+        when(template.opsForSet()).thenReturn(setOps);
+        when(template.opsForStream()).thenReturn(streamOps);
+        doAnswer(inv -> strings.put(inv.getArgument(0), inv.getArgument(1))).when(valueOps).set(anyString(), anyString());
+        when(valueOps.increment(anyString())).thenAnswer(inv -> call(new String[]{"INCRBY", inv.getArgument(0), "1"}));
+        when(setOps.remove(anyString(), any())).thenAnswer(inv -> {
+            Set<String> set = sets.getOrDefault(inv.<String>getArgument(0), new HashSet<>());
+            long removed = 0;
+            for (Object member : Arrays.copyOfRange(inv.getArguments(), 1, inv.getArguments().length)) {
+                removed += set.remove(String.valueOf(member)) ? 1 : 0;
+            }
+            return removed;
+        });
+        when(streamOps.add(anyString(), any(Map.class))).thenAnswer(inv -> {
+            streams.computeIfAbsent(inv.getArgument(0), k -> new ArrayList<>()).add(inv.getArgument(1));
+            return RecordId.autoGenerate();
+        });
+        return template;
+    }
+
+    void geoAdd(String key, String member, double lon, double lat) {
+        geos.computeIfAbsent(key, k -> new ConcurrentHashMap<>()).put(member, new double[]{lon, lat});
+    }
+
+    synchronized Object eval(RedisScript<?> script, List<String> keys, Object... args) {
+        Globals globals = JsePlatform.standardGlobals();
+        LuaTable keyTable = new LuaTable();
+        for (int i = 0; i < keys.size(); i++) {
+            keyTable.set(i + 1, LuaValue.valueOf(keys.get(i)));
+        }
+        LuaTable argTable = new LuaTable();
+        for (int i = 0; i < args.length; i++) {
+            argTable.set(i + 1, LuaValue.valueOf(String.valueOf(args[i])));
+        }
+        LuaTable redis = new LuaTable();
+        redis.set("call", new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs varargs) {
+                String[] command = new String[varargs.narg()];
+                for (int i = 0; i < command.length; i++) {
+                    command[i] = varargs.arg(i + 1).tojstring();
+                }
+                return toLua(FakeRedis.this.call(command));
+            }
+        });
+        globals.set("KEYS", keyTable);
+        globals.set("ARGV", argTable);
+        globals.set("redis", redis);
+        LuaValue result = globals.load(script.getScriptAsString(), "script").call();
+        return fromLua(result, script.getResultType());
+    }
+
+    private synchronized Object call(String[] c) {
+        String key = c.length > 1 ? c[1] : null;
+        switch (c[0].toUpperCase(Locale.ROOT)) {
+            case "GET":
+                return strings.get(key);
+            case "INCRBY":
+                long value = Long.parseLong(strings.getOrDefault(key, "0")) + Long.parseLong(c[2]);
+                strings.put(key, String.valueOf(value));
+                return value;
+            case "SISMEMBER":
+                return sets.getOrDefault(key, new HashSet<>()).contains(c[2]) ? 1L : 0L;
+            case "SADD":
+                Set<String> set = sets.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet());
+                long added = 0;
+                for (int i = 2; i < c.length; i++) {
+                    added += set.add(c[i]) ? 1 : 0;
+                }
+                return added;
+            case "EXISTS":
+                return exists(key) ? 1L : 0L;
+            case "EXPIRE":
+                if (!exists(key)) {
+                    return 0L;
+                }
+                ttls.put(key, Long.parseLong(c[2]));
+                return 1L;
+            case "GEOSEARCHSTORE":
+                return geoSearchStore(c);
+            case "ZRANGEBYSCORE":
+                return zrangeByScore(c);
+            default:
+                throw new UnsupportedOperationException("FakeRedis不支持的命令：" + c[0]);
+        }
+    }
+
+    private boolean exists(String key) {
+        return strings.containsKey(key) || sets.containsKey(key) || zsets.containsKey(key) || geos.containsKey(key);
+    }
+
+    /*
+    GEOSEARCHSTORE dest src FROMLONLAT lon lat BYRADIUS r m ASC STOREDIST
+    * */
+    private Object geoSearchStore(String[] c) {
+        if (!"FROMLONLAT".equalsIgnoreCase(c[3]) || !"BYRADIUS".equalsIgnoreCase(c[6]) || !"m".equals(c[8])
+                || !"STOREDIST".equalsIgnoreCase(c[c.length - 1])) {
+            throw new UnsupportedOperationException("FakeRedis只支持 FROMLONLAT BYRADIUS m STOREDIST");
+        }
+        double lon = Double.parseDouble(c[4]);
+        double lat = Double.parseDouble(c[5]);
+        double radius = Double.parseDouble(c[7]);
+        Map<String, Double> dest = new ConcurrentHashMap<>();
+        geos.getOrDefault(c[2], new HashMap<>()).forEach((member, p) -> {
+            double d = distance(lon, lat, p[0], p[1]);
+            if (d <= radius) {
+                dest.put(member, d);
+            }
+        });
+        zsets.remove(c[1]);
+        if (!dest.isEmpty()) {
+            zsets.put(c[1], dest);
+        }
+        return (long) dest.size();
+    }
+
+    /*
+    ZRANGEBYSCORE key min max [WITHSCORES] [LIMIT offset count]，分数相同按成员的字符串排序
+    * */
+    private Object zrangeByScore(String[] c) {
+        boolean withScores = false;
+        int offset = 0;
+        int count = -1;
+        for (int i = 4; i < c.length; i++) {
+            if ("WITHSCORES".equalsIgnoreCase(c[i])) {
+                withScores = true;
+            } else if ("LIMIT".equalsIgnoreCase(c[i])) {
+                offset = Integer.parseInt(c[++i]);
+                count = Integer.parseInt(c[++i]);
+            }
+        }
+        List<Map.Entry<String, Double>> entries = new ArrayList<>(zsets.getOrDefault(c[1], new HashMap<>()).entrySet());
+        entries.sort(Map.Entry.<String, Double>comparingByValue().thenComparing(Map.Entry.comparingByKey()));
+        List<String> result = new ArrayList<>();
+        int skipped = 0;
+        for (Map.Entry<String, Double> e : entries) {
+            if (!aboveMin(e.getValue(), c[2]) || !belowMax(e.getValue(), c[3])) {
+                continue;
+            }
+            if (skipped++ < offset) {
+                continue;
+            }
+            if (count >= 0 && result.size() >= (withScores ? 2 : 1) * count) {
+                break;
+            }
+            result.add(e.getKey());
+            if (withScores) {
+                result.add(formatScore(e.getValue()));
+            }
+        }
+        return result;
+    }
+
+    private static boolean aboveMin(double score, String min) {
+        if ("-inf".equals(min)) {
+            return true;
+        }
+        return min.startsWith("(") ? score > Double.parseDouble(min.substring(1)) : score >= Double.parseDouble(min);
+    }
+
+    private static boolean belowMax(double score, String max) {
+        if ("+inf".equals(max)) {
+            return true;
+        }
+        return max.startsWith("(") ? score < Double.parseDouble(max.substring(1)) : score <= Double.parseDouble(max);
+    }
+
+    /**
+     * 和redis一样输出能精确还原的最短十进制表示
+     */
+    static String formatScore(double score) {
+        return BigDecimal.valueOf(score).stripTrailingZeros().toPlainString();
+    }
+
+    static double distance(double lon1, double lat1, double lon2, double lat2) {
+        double lat1r = Math.toRadians(lat1);
+        double lat2r = Math.toRadians(lat2);
+        double u = Math.sin((lat2r - lat1r) / 2);
+        double v = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        return 2.0 * EARTH_RADIUS_M * Math.asin(Math.sqrt(u * u + Math.cos(lat1r) * Math.cos(lat2r) * v * v));
+    }
+
+    private static LuaValue toLua(Object value) {
+        if (value == null) {
+            return LuaValue.FALSE;
+        }
+        if (value instanceof Long) {
+            return LuaValue.valueOf((Long) value);
+        }
+        if (value instanceof List) {
+            LuaTable table = new LuaTable();
+            List<?> list = (List<?>) value;
+            for (int i = 0; i < list.size(); i++) {
+                table.set(i + 1, toLua(list.get(i)));
+            }
+            return table;
+        }
+        return LuaValue.valueOf(value.toString());
+    }
+
+    private static Object fromLua(LuaValue value, Class<?> resultType) {
+        if (value.isnil() || (value.isboolean() && !value.toboolean())) {
+            return null;
+        }
+        if (value.istable()) {
+            List<Object> list = new ArrayList<>();
+            for (int i = 1; !value.get(i).isnil(); i++) {
+                list.add(fromLua(value.get(i), Object.class));
+            }
+            return list;
+        }
+        if (value.type() == LuaValue.TNUMBER) {
+            return value.tolong();
+        }
+        return Long.class.equals(resultType) ? Long.valueOf(value.tojstring()) : value.tojstring();
+    }
+}
@@ -0,0 +1,124 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_SCROLL_KEY;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * geo_scroll.lua的游标：按（距离，店铺id）翻页，距离相同的店铺跨页时不重复也不遗漏
+ * 参数和 ShopServiceImpl.scrollByType 一样由Java传入，上一页最后一个距离经过一次 Double 解析再转回字符串
+ */
+class GeoScrollScriptTest {
+    private static final double X = 120.15;
+    private static final double Y = 30.3;
+    private static final String GEO_KEY = SHOP_GEO_KEY + 1;
+    private static final String SESSION_KEY = "{" + GEO_KEY + "}" + SHOP_GEO_SCROLL_KEY + X + ":" + Y;
+    private FakeRedis redis;
+    private RedisScriptRegistry registry;
+    private RedisScript<List> script;
+
+    @BeforeEach
+    void setUp() {
+        redis = new FakeRedis();
+        registry = redis.registry();
+        script = registry.register("geo_scroll", List.class);
+    }
+
+    @Test
+    void tiesAcrossPageBoundariesAreNeitherRepeatedNorSkipped() {
+        //id的字符串顺序和数字顺序不同（100 < 11 < 9），同一个坐标上的店铺距离完全相同
+        for (long id : new long[]{9, 10, 11, 100, 101, 12, 7}) {
+            redis.geoAdd(GEO_KEY, String.valueOf(id), 120.16, 30.31);
+        }
+        for (long id : new long[]{3, 30, 300}) {
+            redis.geoAdd(GEO_KEY, String.valueOf(id), 120.155, 30.3);
+        }
+        redis.geoAdd(GEO_KEY, "5", 120.17, 30.32);
+        //半径外
+        redis.geoAdd(GEO_KEY, "1", 121.0, 31.0);
+
+        for (int pageSize = 1; pageSize <= 12; pageSize++) {
+            assertEquals(expected(5000), scroll(5000, pageSize, false), "pageSize=" + pageSize);
+        }
+    }
+
+    @Test
+    void randomTiesMatchBruteForce() {
+        Random random = new Random(22L);
+        for (long id = 1; id <= 300; id++) {
+            redis.geoAdd(GEO_KEY, String.valueOf(id), X + random.nextInt(8) * 0.005, Y + random.nextInt(8) * 0.005);
+        }
+        assertEquals(expected(5000), scroll(5000, 7, false));
+    }
+
+    @Test
+    void expiredSessionIsRebuiltFromTheCursor() {
+        for (long id = 1; id <= 40; id++) {
+            redis.geoAdd(GEO_KEY, String.valueOf(id), X + (id % 4) * 0.003, Y);
+        }
+        //每翻一页都删掉滚动的有序集合，模拟过期，之后的页重新筛选，结果不变
+        assertEquals(expected(5000), scroll(5000, 6, true));
+        assertEquals(Long.valueOf(60), redis.ttls.get(SESSION_KEY));
+    }
+
+    @Test
+    void firstPageStoresTheSession() {
+        redis.geoAdd(GEO_KEY, "1", X, Y);
+        assertNull(redis.zsets.get(SESSION_KEY));
+        List<?> page = registry.execute(script, Arrays.asList(GEO_KEY, SESSION_KEY), X, Y, 5000.0, -1.0, 0L, 5, 60L);
+        assertEquals(Arrays.asList("1", "0"), page);
+        assertNotNull(redis.zsets.get(SESSION_KEY));
+    }
+
+    /*
+    和ShopServiceImpl.scrollByType一样逐页调用，返回所有页的店铺id
+    * */
+    private List<Long> scroll(double radius, int pageSize, boolean expireEachPage) {
+        List<Long> ids = new ArrayList<>();
+        double afterDistance = -1;
+        long lastId = 0;
+        for (int pages = 0; pages < 1000; pages++) {
+            List<?> page = registry.execute(script, Arrays.asList(GEO_KEY, SESSION_KEY),
+                    X, Y, radius, afterDistance, lastId, pageSize, 60L);
+            for (int i = 0; i + 1 < page.size(); i += 2) {
+                ids.add(Long.valueOf(page.get(i).toString()));
+            }
+            if (page.size() / 2 < pageSize) {
+                return ids;
+            }
+            lastId = Long.parseLong(page.get(page.size() - 2).toString());
+            afterDistance = Double.valueOf(page.get(page.size() - 1).toString());
+            if (expireEachPage) {
+                redis.zsets.remove(SESSION_KEY);
+            }
+        }
+        throw new AssertionError("翻页没有结束");
+    }
+
+    /*
+    半径内的所有店铺按（距离，数字id）排序
+    * */
+    private List<Long> expected(double radius) {
+        return redis.geos.get(GEO_KEY).entrySet().stream()
+                .filter(e -> distance(e) <= radius)
+                .sorted(Comparator.comparingDouble(this::distance).thenComparingLong(e -> Long.parseLong(e.getKey())))
+                .map(e -> Long.valueOf(e.getKey()))
+                .collect(Collectors.toList());
+    }
+
+    private double distance(Map.Entry<String, double[]> e) {
+        return FakeRedis.distance(X, Y, e.getValue()[0], e.getValue()[1]);
+    }
+}
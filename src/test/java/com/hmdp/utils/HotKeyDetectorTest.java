@@ -0,0 +1,108 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.HotKey;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 滑动窗口的count-min sketch：窗口1秒，10个子窗口，每个100ms，阈值50
+ */
+class HotKeyDetectorTest {
+    private static final long T0 = 1_000_000L;
+    private FakeClockDetector detector;
+
+    @BeforeEach
+    void setUp() {
+        detector = new FakeClockDetector(2);
+        detector.now = T0;
+    }
+
+    @Test
+    void becomesHotAtTheThreshold() {
+        for (int i = 1; i < 50; i++) {
+            assertFalse(detector.record("cache:shop:1"));
+        }
+        assertTrue(detector.record("cache:shop:1"));
+        assertTrue(detector.isHot("cache:shop:1"));
+        assertFalse(detector.isHot("cache:shop:2"));
+    }
+
+    @Test
+    void countsFromExpiredSlotsDropOutOfTheWindow() {
+        record("cache:shop:1", 30);
+        detector.now = T0 + 600;
+        record("cache:shop:1", 29);
+        //两个子窗口加起来59次
+        assertTrue(detector.record("cache:shop:1"));
+        assertEquals(60, count("cache:shop:1"));
+
+        //T0所在的子窗口滑出窗口，同一个下标被新的时间片清零复用
+        detector.now = T0 + 1000;
+        assertEquals(30, count("cache:shop:1"));
+        detector.record("cache:shop:1");
+        assertEquals(31, count("cache:shop:1"));
+
+        //热点状态持续一个窗口，之后按窗口内的次数重新判断
+        detector.now = T0 + 600 + 1000;
+        assertFalse(detector.isHot("cache:shop:1"));
+        assertFalse(detector.record("cache:shop:1"));
+        assertTrue(detector.hotKeys().isEmpty());
+    }
+
+    @Test
+    void onlyCountsInsideTheWindowAfterAnIdlePeriod() {
+        record("cache:shop:1", 40);
+        //所有子窗口都过期之后，没有被复用的子窗口也不能计入
+        detector.now = T0 + 5000;
+        record("cache:shop:1", 20);
+        assertFalse(detector.isHot("cache:shop:1"));
+        record("cache:shop:1", 30);
+        assertTrue(detector.isHot("cache:shop:1"));
+    }
+
+    @Test
+    void neverUnderestimatesAndRespectsCapacity() {
+        //大量冷key和热key共享sketch，估计值只会偏大
+        for (int i = 0; i < 5000; i++) {
+            detector.record("cache:cold:" + i);
+        }
+        record("cache:shop:1", 50);
+        record("cache:shop:2", 60);
+        record("cache:shop:3", 70);
+        List<HotKey> hotKeys = detector.hotKeys();
+        //容量为2，第三个热点不再加入
+        assertEquals(2, hotKeys.size());
+        assertEquals("cache:shop:2", hotKeys.get(0).getKey());
+        assertTrue(hotKeys.get(0).getCount() >= 60);
+        assertTrue(hotKeys.get(1).getCount() >= 50);
+        assertFalse(detector.isHot("cache:shop:3"));
+    }
+
+    private void record(String key, int times) {
+        for (int i = 0; i < times; i++) {
+            detector.record(key);
+        }
+    }
+
+    private long count(String key) {
+        return detector.hotKeys().stream().filter(h -> h.getKey().equals(key))
+                .mapToLong(HotKey::getCount).findFirst().orElse(-1);
+    }
+
+    private static class FakeClockDetector extends HotKeyDetector {
+        long now;
+
+        FakeClockDetector(int capacity) {
+            super(1000, 10, 4096, 50, capacity);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * 本地时间窗口缓存：已经预热的券和不存在的券都只访问一次redis
+ */
+class SeckillStockGateTest {
+    private HashOperations<String, Object, Object> hashOps;
+    private SeckillStockGate gate;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        hashOps = mock(HashOperations.class);
+        when(template.opsForHash()).thenReturn(hashOps);
+        when(hashOps.multiGet(any(), any())).thenReturn(Arrays.asList(null, null));
+        gate = new SeckillStockGate(template, mock(RedisMessageListenerContainer.class), 5000, 100, 60000, 60000);
+    }
+
+    @Test
+    void unknownVoucherIsCachedAsOpen() {
+        for (int i = 0; i < 10; i++) {
+            assertEquals(SeckillStockGate.OPEN, gate.windowState(404L));
+        }
+        verify(hashOps, times(1)).multiGet(eq(RedisConstants.SECKILL_WINDOW_KEY + 404), any());
+    }
+
+    @Test
+    void preheatedWindowIsCached() {
+        long now = System.currentTimeMillis();
+        when(hashOps.multiGet(eq(RedisConstants.SECKILL_WINDOW_KEY + 1), any()))
+                .thenReturn(Arrays.asList(String.valueOf(now + 60000), String.valueOf(now + 120000)));
+        when(hashOps.multiGet(eq(RedisConstants.SECKILL_WINDOW_KEY + 2), any()))
+                .thenReturn(Arrays.asList(String.valueOf(now - 120000), String.valueOf(now - 60000)));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(SeckillStockGate.NOT_STARTED, gate.windowState(1L));
+            assertEquals(SeckillStockGate.ENDED, gate.windowState(2L));
+        }
+        verify(hashOps, times(2)).multiGet(any(), any());
+    }
+
+    @Test
+    void replenishReloadsTheWindow() {
+        gate.windowState(7L);
+        gate.publishReplenished(7L);
+        gate.windowState(7L);
+        verify(hashOps, times(2)).multiGet(eq(RedisConstants.SECKILL_WINDOW_KEY + 7), any());
+    }
+}
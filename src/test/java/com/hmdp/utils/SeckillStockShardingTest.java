@@ -0,0 +1,127 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+
+/**
+ * 分片库存：在内存redis里执行真实的seckill_bucket.lua和stock_take.lua
+ * 3个分片，userId按哈希落到 userId % 3 号分片
+ */
+class SeckillStockShardingTest {
+    private static final long VOUCHER_ID = 10L;
+    private static final String ORDER_KEY_2 = SECKILL_ORDER_KEY + "{" + VOUCHER_ID + ":2}";
+    private FakeRedis redis;
+    private RedisScriptRegistry registry;
+    private StringRedisTemplate template;
+    private SeckillStockSharding sharding;
+
+    @BeforeEach
+    void setUp() {
+        redis = new FakeRedis();
+        registry = redis.registry();
+        template = redis.template();
+        sharding = new SeckillStockSharding(template, registry);
+        ReflectionTestUtils.setField(sharding, "shards", 3);
+    }
+
+    @Test
+    void borrowsFromSiblingWhenHomeBucketIsEmpty() {
+        //库存2只分到0、1号分片，2号分片的用户需要借
+        sharding.initStock(VOUCHER_ID, 2);
+        assertEquals("0", stock(2));
+
+        assertEquals(0, sharding.seckill(VOUCHER_ID, 2L, 100L));
+
+        //下单记录在自己的分片，库存从下一个兄弟分片（0号）扣
+        assertTrue(buyers(2).contains("2"));
+        assertEquals("0", stock(0));
+        assertEquals("1", stock(1));
+        assertEquals("0", stock(2));
+        List<Map<?, ?>> orders = redis.streams.get(STREAM_ORDERS_KEY);
+        assertEquals(1, orders.size());
+        assertEquals("100", orders.get(0).get("id"));
+    }
+
+    @Test
+    void soldOutWhenEveryBucketIsEmpty() {
+        sharding.initStock(VOUCHER_ID, 2);
+        assertEquals(0, sharding.seckill(VOUCHER_ID, 2L, 100L));
+        assertEquals(0, sharding.seckill(VOUCHER_ID, 5L, 101L));
+
+        assertEquals(1, sharding.seckill(VOUCHER_ID, 8L, 102L));
+        assertFalse(buyers(2).contains("8"));
+        for (int i = 0; i < 3; i++) {
+            assertEquals("0", stock(i));
+        }
+    }
+
+    @Test
+    void duplicateOrderIsRejectedWithoutTouchingStock() {
+        sharding.initStock(VOUCHER_ID, 3);
+        assertEquals(0, sharding.seckill(VOUCHER_ID, 1L, 100L));
+        assertEquals(2, sharding.seckill(VOUCHER_ID, 1L, 101L));
+        assertEquals("0", stock(1));
+        assertEquals("1", stock(0));
+        assertEquals("1", stock(2));
+    }
+
+    @Test
+    void borrowedStockIsReturnedWhenTheSameUserWinsMeanwhile() {
+        sharding.initStock(VOUCHER_ID, 2);
+        //借库存的同时，同一个用户的另一个请求已经在自己的分片记录了下单
+        doAnswer(inv -> {
+            Object taken = redis.eval(inv.getArgument(0), inv.getArgument(1));
+            redis.sets.computeIfAbsent(ORDER_KEY_2, k -> new HashSet<>()).add("2");
+            return taken;
+        }).when(registry).execute(argThat(SeckillStockShardingTest::isStockTake), any());
+
+        assertEquals(2, sharding.seckill(VOUCHER_ID, 2L, 100L));
+
+        assertEquals("1", stock(0));
+        assertEquals("1", stock(1));
+        assertNull(redis.streams.get(STREAM_ORDERS_KEY));
+    }
+
+    @Test
+    void failedXaddRollsBackBorrowedStockAndBuyer() {
+        sharding.initStock(VOUCHER_ID, 2);
+        StreamOperations<String, Object, Object> streamOps = template.opsForStream();
+        doThrow(new IllegalStateException("redis down")).when(streamOps).add(anyString(), any(Map.class));
+
+        assertThrows(IllegalStateException.class, () -> sharding.seckill(VOUCHER_ID, 2L, 100L));
+
+        assertFalse(buyers(2).contains("2"));
+        assertEquals("1", stock(0));
+        assertEquals("1", stock(1));
+    }
+
+    private String stock(int bucket) {
+        return redis.strings.get(SECKILL_STOCK_KEY + "{" + VOUCHER_ID + ":" + bucket + "}");
+    }
+
+    private Set<String> buyers(int bucket) {
+        return redis.sets.getOrDefault(SECKILL_ORDER_KEY + "{" + VOUCHER_ID + ":" + bucket + "}", Collections.emptySet());
+    }
+
+    private static boolean isStockTake(RedisScript<?> script) {
+        return script != null && script.getScriptAsString().contains("向兄弟分片借库存");
+    }
+}
@@ -0,0 +1,75 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * 号段模式：用到低水位时异步预取下一个号段，当前号段用完直接切换，不再同步访问redis
+ */
+class SegmentIdGeneratorTest {
+    private static final long STEP = 10;
+    private SegmentIdGenerator generator;
+    private ValueOperations<String, String> ops;
+    private final AtomicLong counter = new AtomicLong();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        ops = mock(ValueOperations.class);
+        when(template.opsForValue()).thenReturn(ops);
+        when(ops.increment(anyString(), anyLong())).thenAnswer(inv -> counter.addAndGet(inv.getArgument(1)));
+        generator = new SegmentIdGenerator(template);
+        ReflectionTestUtils.setField(generator, "step", STEP);
+        ReflectionTestUtils.setField(generator, "lowWaterRatio", 0.2);
+    }
+
+    @Test
+    void prefetchesAtLowWaterMark() {
+        //号段[1,10]，低水位是2，拿到8之前只加载过一次
+        for (long i = 1; i <= 7; i++) {
+            assertEquals(i, count(generator.nextId("order")));
+        }
+        verify(ops, times(1)).increment(anyString(), eq(STEP));
+        //拿到8时触发异步预取
+        assertEquals(8, count(generator.nextId("order")));
+        verify(ops, timeout(1000).times(2)).increment(anyString(), eq(STEP));
+        //当前号段用完后切换到预取的号段[11,20]，不再加载
+        for (long i = 9; i <= 12; i++) {
+            assertEquals(i, count(generator.nextId("order")));
+        }
+        verify(ops, times(2)).increment(anyString(), eq(STEP));
+    }
+
+    @Test
+    void prefixesUseSeparateSegments() {
+        generator.nextId("order");
+        generator.nextId("blog");
+        verify(ops).increment(startsWith("icr:order:"), eq(STEP));
+        verify(ops).increment(startsWith("icr:blog:"), eq(STEP));
+    }
+
+    @Test
+    void idsAreUniqueAndIncreasingAcrossSegments() {
+        long last = 0;
+        for (int i = 0; i < 5 * STEP; i++) {
+            long id = generator.nextId("order");
+            assertTrue(id > last);
+            last = id;
+        }
+    }
+
+    private static long count(long id) {
+        return id & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,150 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.listener.Topic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * 网格索引的附近查询和暴力计算所有店铺的球面距离比较，结果和顺序都必须一致
+ * 包括杭州附近和高纬度（经度方向的格子明显变窄）的店铺，半径50km
+ */
+class ShopGeoIndexTest {
+    private static final double RADIUS = 50000;
+    private static final long TYPE_ID = 1L;
+    private final Random random = new Random(20261018L);
+
+    @Test
+    void nearbyMatchesBruteForce() {
+        for (double lat : new double[]{30.3, 62.0, 80.0}) {
+            List<Shop> shops = randomShops(lat, 3000, 0.8);
+            ShopGeoIndex index = load(shops);
+            for (int q = 0; q < 30; q++) {
+                double x = 120.15 + (random.nextDouble() - 0.5);
+                double y = lat + (random.nextDouble() - 0.5);
+                List<ShopGeoIndex.Hit> all = bruteForce(shops, x, y);
+                for (int limit : new int[]{1, 10, 100}) {
+                    assertEquals(ids(all.subList(0, Math.min(limit, all.size()))),
+                            ids(index.nearby(TYPE_ID, x, y, RADIUS, limit)),
+                            "lat=" + y + " lon=" + x + " limit=" + limit);
+                }
+            }
+        }
+    }
+
+    @Test
+    void scrollingWithTheCursorVisitsEveryShopOnce() {
+        //坐标只取少数几个值，制造大量距离相同的店铺
+        List<Shop> shops = new ArrayList<>();
+        for (long id = 1; id <= 600; id++) {
+            shops.add(new Shop().setId(id).setTypeId(TYPE_ID)
+                    .setX(120.15 + random.nextInt(20) * 0.02).setY(62.0 + random.nextInt(20) * 0.01));
+        }
+        ShopGeoIndex index = load(shops);
+        double x = 120.3;
+        double y = 62.1;
+        List<Long> expected = ids(bruteForce(shops, x, y));
+
+        List<Long> scrolled = new ArrayList<>();
+        double afterDistance = -1;
+        long afterId = 0;
+        while (true) {
+            List<ShopGeoIndex.Hit> page = index.nearby(TYPE_ID, x, y, RADIUS, afterDistance, afterId, 7);
+            if (page.isEmpty()) {
+                break;
+            }
+            page.forEach(h -> scrolled.add(h.getShopId()));
+            ShopGeoIndex.Hit last = page.get(page.size() - 1);
+            afterDistance = last.getDistance();
+            afterId = last.getShopId();
+        }
+        assertEquals(expected, scrolled);
+    }
+
+    @Test
+    void reloadReplacesTheIndexAndReplaysChangesReceivedWhileLoading() {
+        RedisMessageListenerContainer container = mock(RedisMessageListenerContainer.class);
+        ShopGeoIndex index = new ShopGeoIndex(mock(StringRedisTemplate.class), container, true, 0.01);
+        ArgumentCaptor<MessageListener> listener = ArgumentCaptor.forClass(MessageListener.class);
+        verify(container).addMessageListener(listener.capture(), any(Topic.class));
+        index.load(lastId -> lastId == 0 ? Arrays.asList(shop(1, 120.15), shop(2, 120.16), shop(3, 120.17)) : Collections.emptyList());
+
+        //重新加载：店铺3已经从数据库删除（删除消息丢失了），加载期间店铺1移动、店铺2被删除
+        index.load(lastId -> {
+            if (lastId != 0) {
+                return Collections.emptyList();
+            }
+            publish(listener.getValue(), shop(1, 120.3));
+            publish(listener.getValue(), new Shop().setId(2L));
+            //加载期间查询仍然使用旧的索引，收到的变更同时作用于旧的索引
+            assertEquals(Arrays.asList(3L, 1L), ids(index.nearby(TYPE_ID, 120.15, 30.3, RADIUS, 10)));
+            return Arrays.asList(shop(1, 120.15), shop(2, 120.16));
+        });
+        assertEquals(Collections.singletonList(1L), ids(index.nearby(TYPE_ID, 120.3, 30.3, RADIUS, 10)));
+        assertEquals(1, index.within(TYPE_ID, 120.3, 30.3, 100, null).size());
+        assertTrue(index.within(TYPE_ID, 120.15, 30.3, 3000, null).isEmpty());
+    }
+
+    private static Shop shop(long id, double x) {
+        return new Shop().setId(id).setTypeId(TYPE_ID).setX(x).setY(30.3);
+    }
+
+    private static void publish(MessageListener listener, Shop shop) {
+        listener.onMessage(new DefaultMessage(new byte[0], JSONUtil.toJsonStr(shop).getBytes(StandardCharsets.UTF_8)), null);
+    }
+
+    private ShopGeoIndex load(List<Shop> shops) {
+        ShopGeoIndex index = new ShopGeoIndex(mock(StringRedisTemplate.class), mock(RedisMessageListenerContainer.class), true, 0.01);
+        index.load(lastId -> lastId == 0 ? shops : Collections.emptyList());
+        assertTrue(index.isReady());
+        return index;
+    }
+
+    private List<Shop> randomShops(double lat, int n, double spread) {
+        List<Shop> shops = new ArrayList<>(n);
+        for (long id = 1; id <= n; id++) {
+            shops.add(new Shop().setId(id).setTypeId(TYPE_ID)
+                    .setX(120.15 + (random.nextDouble() - 0.5) * spread * 2)
+                    .setY(lat + (random.nextDouble() - 0.5) * spread));
+        }
+        return shops;
+    }
+
+    /*
+    半径内的所有店铺，按（距离，id）排序
+    * */
+    private static List<ShopGeoIndex.Hit> bruteForce(List<Shop> shops, double x, double y) {
+        List<ShopGeoIndex.Hit> hits = new ArrayList<>();
+        for (Shop shop : shops) {
+            double d = FakeRedis.distance(x, y, shop.getX(), shop.getY());
+            if (d <= RADIUS) {
+                hits.add(new ShopGeoIndex.Hit(shop.getId(), d, 0));
+            }
+        }
+        hits.sort(Comparator.comparingDouble(ShopGeoIndex.Hit::getDistance).thenComparingLong(ShopGeoIndex.Hit::getShopId));
+        return hits;
+    }
+
+    private static List<Long> ids(List<ShopGeoIndex.Hit> hits) {
+        return hits.stream().map(ShopGeoIndex.Hit::getShopId).collect(Collectors.toList());
+    }
+}
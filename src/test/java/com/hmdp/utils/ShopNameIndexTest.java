@@ -0,0 +1,82 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.listener.Topic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * 名称索引的全量重新加载：丢失的变更由数据库快照补上，加载期间收到的变更在替换之后重放
+ */
+class ShopNameIndexTest {
+    private ShopNameIndex index;
+    private MessageListener listener;
+
+    @BeforeEach
+    void setUp() {
+        RedisMessageListenerContainer container = mock(RedisMessageListenerContainer.class);
+        index = new ShopNameIndex(mock(StringRedisTemplate.class), container, true);
+        ArgumentCaptor<MessageListener> captor = ArgumentCaptor.forClass(MessageListener.class);
+        verify(container).addMessageListener(captor.capture(), any(Topic.class));
+        listener = captor.getValue();
+    }
+
+    @Test
+    void searchRanksPrefixBeforeContainsBeforeArea() {
+        load(Arrays.asList(shop(1, "老王茶餐厅", "大关", 10), shop(2, "茶餐厅", "拱宸桥", 5),
+                shop(3, "面馆", "茶餐厅街", 100), shop(4, "港式茶餐厅", "大关", 50)));
+        assertEquals(Arrays.asList(2L, 4L, 1L, 3L), index.search("茶餐厅", 0, 10));
+        assertEquals(Arrays.asList(4L, 1L), index.search("茶餐厅", 1, 2));
+        assertEquals(Arrays.asList(4L, 1L), index.search("大关", 0, 10));
+        assertTrue(index.search("咖啡", 0, 10).isEmpty());
+    }
+
+    @Test
+    void reloadReplacesTheIndexAndReplaysChangesReceivedWhileLoading() {
+        load(Arrays.asList(shop(1, "老王茶餐厅", "大关", 10), shop(2, "港式茶餐厅", "大关", 5), shop(3, "茶餐厅", "大关", 1)));
+
+        //重新加载：店铺3已经从数据库删除（删除消息丢失了），加载期间店铺1改名、店铺2被删除
+        index.load(lastId -> {
+            if (lastId != 0) {
+                return Collections.emptyList();
+            }
+            publish(shop(1, "老王面馆", "大关", 10));
+            publish(new Shop().setId(2L));
+            //加载期间查询仍然使用旧的索引，收到的变更同时作用于旧的索引
+            assertEquals(Collections.singletonList(3L), index.search("茶餐厅", 0, 10));
+            return Arrays.asList(shop(1, "老王茶餐厅", "大关", 10), shop(2, "港式茶餐厅", "大关", 5));
+        });
+        assertTrue(index.search("茶餐厅", 0, 10).isEmpty());
+        assertEquals(Collections.singletonList(1L), index.search("面馆", 0, 10));
+        assertEquals(Collections.singletonList(1L), index.search("大关", 0, 10));
+    }
+
+    private void load(List<Shop> shops) {
+        index.load(lastId -> lastId == 0 ? shops : Collections.emptyList());
+        assertTrue(index.isReady());
+    }
+
+    private void publish(Shop shop) {
+        listener.onMessage(new DefaultMessage(new byte[0], JSONUtil.toJsonStr(shop).getBytes(StandardCharsets.UTF_8)), null);
+    }
+
+    private static Shop shop(long id, String name, String area, int comments) {
+        return new Shop().setId(id).setName(name).setArea(area).setComments(comments);
+    }
+}
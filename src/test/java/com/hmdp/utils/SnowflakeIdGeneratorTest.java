@@ -0,0 +1,121 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * 雪花id的位布局、单调递增和时钟回拨处理
+ */
+class SnowflakeIdGeneratorTest {
+    private static final long BEGIN = 1640995200000L;
+    private static final long WORKER_ID = 5;
+    private FakeClockGenerator generator;
+
+    @BeforeEach
+    void setUp() {
+        generator = new FakeClockGenerator();
+        ReflectionTestUtils.setField(generator, "workerId", WORKER_ID);
+        ReflectionTestUtils.setField(generator, "leaseExpireAt", Long.MAX_VALUE);
+        ReflectionTestUtils.setField(generator, "maxBackwardMs", 5L);
+    }
+
+    @Test
+    void layoutHasModeBitTimestampWorkerAndSequence() {
+        long now = BEGIN + 123456789L;
+        generator.ticks(now, now);
+        long first = generator.nextId("order");
+        long second = generator.nextId("order");
+
+        assertEquals(1L, first >>> 62, "第62位是模式位");
+        assertEquals(123456789L, (first >>> 22) & ((1L << 40) - 1));
+        assertEquals(WORKER_ID, (first >>> 12) & 1023);
+        assertEquals(0, first & 4095);
+        assertEquals(1, second & 4095, "同一毫秒内序列号加一");
+    }
+
+    @Test
+    void neverOverlapsSegmentIds() {
+        //号段id在2056年之前第62位都是0
+        long segmentId = ((1L << 30) - 1) << 32 | 0xFFFFFFFFL;
+        generator.ticks(BEGIN);
+        assertTrue(generator.nextId("order") > segmentId);
+    }
+
+    @Test
+    void smallClockRollbackWaitsAndStaysMonotonic() {
+        long now = BEGIN + 1000;
+        //第三次回拨3ms，之后时钟每次读取前进1ms
+        generator.ticks(now, now, now - 3);
+        long a = generator.nextId("order");
+        long b = generator.nextId("order");
+        long c = generator.nextId("order");
+
+        assertTrue(a < b && b < c);
+        assertTrue((c >>> 22 & ((1L << 40) - 1)) >= 1000, "等时钟追上之后才生成");
+    }
+
+    @Test
+    void largeClockRollbackIsRejected() {
+        long now = BEGIN + 1000;
+        generator.ticks(now, now - 100);
+        generator.nextId("order");
+        assertThrows(IllegalStateException.class, () -> generator.nextId("order"));
+    }
+
+    @Test
+    void sequenceOverflowMovesToNextMillisecond() {
+        long now = BEGIN + 1000;
+        Long[] ticks = new Long[4096];
+        Arrays.fill(ticks, now);
+        generator.ticks(ticks);
+        long last = 0;
+        for (int i = 0; i < 4096; i++) {
+            long id = generator.nextId("order");
+            assertTrue(id > last);
+            last = id;
+        }
+        //第4097个id序列号用完，时钟前进到下一毫秒
+        long overflow = generator.nextId("order");
+        assertTrue(overflow > last);
+        assertEquals(1001, overflow >>> 22 & ((1L << 40) - 1));
+        assertEquals(0, overflow & 4095);
+    }
+
+    @Test
+    void expiredLeaseStopsGeneration() {
+        ReflectionTestUtils.setField(generator, "leaseExpireAt", BEGIN);
+        generator.ticks(BEGIN + 1);
+        assertThrows(IllegalStateException.class, () -> generator.nextId("order"));
+    }
+
+    /*
+    按给定的顺序返回时间，用完之后每次读取前进1ms
+    * */
+    private static class FakeClockGenerator extends SnowflakeIdGenerator {
+        private final Deque<Long> ticks = new ArrayDeque<>();
+        private long last;
+
+        FakeClockGenerator() {
+            super(mock(StringRedisTemplate.class), mock(RedisScriptRegistry.class));
+        }
+
+        void ticks(Long... values) {
+            ticks.addAll(Arrays.asList(values));
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            last = ticks.isEmpty() ? last + 1 : ticks.poll();
+            return last;
+        }
+    }
+}